@@ -0,0 +1,173 @@
+package cn.xnatural.app;
+
+/**
+ * 自适应并发限制
+ * 根据任务执行时长动态调整 {@link LatchLock} 的并发限制(在 min 和 max 之间). AIMD:
+ * 1. 执行时长 超过 基准执行时长 * tolerance: 下游变慢, 并发 乘以 backoff (乘性减)
+ * 2. 执行时长正常 并且 对列中的任务确实在排队(等待时长超过基准执行时长): 并发慢慢加1 (加性增)
+ * 3. 执行失败: 当作下游过载, 乘性减
+ * 基准执行时长: 一个窗口内的最小执行时长, 每个窗口重新计算, 以适应下游的正常变化
+ */
+public class AdaptiveLimiter {
+    /**
+     * 被调整的锁
+     */
+    protected final LatchLock lock;
+    /**
+     * 最小并发
+     */
+    protected final int min;
+    /**
+     * 最大并发
+     */
+    protected final int max;
+    /**
+     * 执行时长容忍倍数
+     */
+    protected double tolerance = 2.0;
+    /**
+     * 乘性减系数
+     */
+    protected double backoff = 0.9;
+    /**
+     * 一个窗口的样本个数
+     */
+    protected int window = 500;
+    /**
+     * 当前并发限制(小数, 加性增时每次加 1/limit)
+     */
+    protected double limit;
+    /**
+     * 基准执行时长(单位: ns)
+     */
+    protected long minRtt = Long.MAX_VALUE;
+    /**
+     * 当前窗口内的最小执行时长
+     */
+    protected long windowMinRtt = Long.MAX_VALUE;
+    /**
+     * 当前窗口内的样本个数
+     */
+    protected int samples;
+    /**
+     * 平滑执行时长(单位: ns)
+     */
+    protected double smoothedRtt;
+    /**
+     * 平滑等待时长(单位: ns)
+     */
+    protected double smoothedWait;
+    /**
+     * 上次乘性减的时间点. 一个执行时长内只减一次, 避免并发被一下降到最小
+     */
+    protected long lastDecrease;
+
+
+    /**
+     * 创建自适应并发限制
+     * @param lock 被调整的锁
+     * @param min 最小并发 >=1
+     * @param max 最大并发 >=min
+     */
+    public AdaptiveLimiter(LatchLock lock, int min, int max) {
+        if (lock == null) throw new IllegalArgumentException("Param lock required");
+        if (min < 1) throw new IllegalArgumentException("Param min >= 1");
+        if (max < min) throw new IllegalArgumentException("Param max >= min");
+        this.lock = lock;
+        this.min = min;
+        this.max = max;
+        this.limit = min;
+        lock.limit(min);
+    }
+
+
+    /**
+     * 一个任务执行成功
+     * @param rtt 执行时长(单位: ns)
+     * @param backlog 对列中是否还有任务在等待
+     */
+    public void onSuccess(long rtt, boolean backlog) { onSuccess(rtt, backlog ? Long.MAX_VALUE : 0, backlog); }
+
+
+    /**
+     * 一个任务执行成功
+     * 只有任务确实在排队(平滑等待时长超过基准执行时长)时才加性增, 避免对列偶尔有一两个任务时把并发加上去
+     * @param rtt 执行时长(单位: ns)
+     * @param wait 在对列中的等待时长(单位: ns)
+     * @param backlog 对列中是否还有任务在等待
+     */
+    public synchronized void onSuccess(long rtt, long wait, boolean backlog) {
+        if (rtt < windowMinRtt) windowMinRtt = rtt;
+        if (rtt < minRtt) minRtt = rtt;
+        if (++samples >= window) { // 新窗口: 基准执行时长使用上个窗口的最小值
+            minRtt = windowMinRtt;
+            windowMinRtt = Long.MAX_VALUE;
+            samples = 0;
+        }
+        smoothedRtt = smoothedRtt <= 0 ? rtt : smoothedRtt * 0.9 + rtt * 0.1;
+        if (wait != Long.MAX_VALUE) smoothedWait = smoothedWait * 0.9 + wait * 0.1;
+        if (smoothedRtt > minRtt * tolerance) decrease();
+        else if (backlog && (wait == Long.MAX_VALUE || smoothedWait > minRtt) && lock.getLatchSize() >= (int) limit) {
+            update(limit + 1.0 / limit);
+        }
+    }
+
+
+    /**
+     * 一个任务执行失败
+     */
+    public synchronized void onFailure() { decrease(); }
+
+
+    /**
+     * 乘性减
+     */
+    protected void decrease() {
+        final long now = System.nanoTime();
+        if (now - lastDecrease < smoothedRtt) return;
+        lastDecrease = now;
+        update(limit * backoff);
+    }
+
+
+    protected void update(double newLimit) {
+        limit = Math.max(min, Math.min(max, newLimit));
+        if ((int) limit != lock.getLimit()) lock.limit((int) limit);
+    }
+
+
+    /**
+     * 设置执行时长容忍倍数
+     * @param tolerance 执行时长超过 基准执行时长*tolerance 时减小并发. >1
+     * @return {@link AdaptiveLimiter}
+     */
+    public AdaptiveLimiter tolerance(double tolerance) {
+        if (tolerance <= 1) throw new IllegalArgumentException("Param tolerance > 1");
+        this.tolerance = tolerance;
+        return this;
+    }
+
+
+    /**
+     * 设置乘性减系数
+     * @param backoff (0, 1)
+     * @return {@link AdaptiveLimiter}
+     */
+    public AdaptiveLimiter backoff(double backoff) {
+        if (backoff <= 0 || backoff >= 1) throw new IllegalArgumentException("Param backoff in (0, 1)");
+        this.backoff = backoff;
+        return this;
+    }
+
+
+    /**
+     * 当前并发限制
+     */
+    public int getLimit() { return lock.getLimit(); }
+
+
+    @Override
+    public String toString() {
+        return "AdaptiveLimiter{limit: " + getLimit() + ", min: " + min + ", max: " + max + ", minRtt: " + (minRtt == Long.MAX_VALUE ? -1 : minRtt / 1000) + "us, smoothedRtt: " + (long) (smoothedRtt / 1000) + "us, smoothedWait: " + (long) (smoothedWait / 1000) + "us}";
+    }
+}
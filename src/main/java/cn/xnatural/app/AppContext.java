@@ -15,14 +15,13 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import static java.util.Collections.emptyList;
-
 /**
  * 应用执行上下文
  * 1. 应用执行环境属性 {@link #env}
@@ -40,6 +39,18 @@ public class AppContext {
      * 对列执行器映射
      */
     protected final        Map<String, Devourer> queues       = new ConcurrentHashMap<>();
+    /**
+     * 通过 queue(qName, null) 获取过(用于设置)的对列名. 空闲回收不回收这些对列, 以保留其设置
+     */
+    protected final        Set<String>           pinnedQueues = ConcurrentHashMap.newKeySet();
+    /**
+     * 按key分组的对列执行器映射
+     */
+    protected final        Map<String, KeyedDevourer> keyedQueues = new ConcurrentHashMap<>();
+    /**
+     * 分段流水线映射
+     */
+    protected final        Map<String, Pipeline<?, ?>> pipelines = new ConcurrentHashMap<>();
     /**
      * 启动时间
      */
@@ -68,62 +79,405 @@ public class AppContext {
         log.debug("init sys executor ...");
         int processorCount = Runtime.getRuntime().availableProcessors();
         Integer corePoolSize = Math.max(2, getAttr("sys.exec.corePoolSize", Integer.class, processorCount >= 4 ? 8 : 4));
+        upThreadThreshold = getAttr("sys.exec.upThreadThreshold", Double.class, 0.5d);
+        final int queueCapacity = getAttr("sys.exec.queueCapacity", Integer.class, 100000);
         final ThreadPoolExecutor exec = new ThreadPoolExecutor(corePoolSize,
                 Math.max(corePoolSize, getAttr("sys.exec.maximumPoolSize", Integer.class, processorCount <= 8 ? 16 : Math.min(processorCount * 2, 64))),
                 getAttr("sys.exec.keepAliveTime", Long.class, 6L), TimeUnit.HOURS,
-                new LinkedBlockingQueue<Runnable>(getAttr("sys.exec.queueCapacity", Integer.class, 100000)) {
-                    double upThreadThreshold = getAttr("sys.exec.upThreadThreshold", Double.class, 0.5d);
-                    /**
-                     * 让线程池创建(除核心线程外)新的线程的临界条件
-                     * 核心线程已满才会触发此方法
-                     * 慢创建: 按当前池中的线程数和等待任务数增长
-                     * 考虑点1: 系统内部添加任务, 有可能会被等待, 造成没有那么多任务的假象. 所以不能用size去比较
-                     *      即: 当所有线程都处于执行状态时, 刚好有一个添加任务添加后也只是等待执行, 没有突破添加线程的条件(除非有多个添加任务)
-                     *      super.size() > 1 && _exec.get().getPoolSize() < _exec.get().getMaximumPoolSize();
-                     * @return true: 创建新线程
-                     */
-                    boolean threshold() {
-                        int size = super.size();
-                        // 这个 size > 1: 有时 添加任务后 size==1, 但还没被poll, 但线程还有空闲,就是取size的值有时稍快于线程poll任务
-                        if (size <= 1) return false;
-                        int ps = _exec.get().getPoolSize();
-                        // 不超过最大线程数
-                        if (ps >= _exec.get().getMaximumPoolSize()) return false;
-                        // 所有线程都在忙并且有超过一定比例的当前忙的线程的任务在等待, 非关闭状态
-                        return size >= (int) (ps * upThreadThreshold) && (!shutdownHook.isAlive());
-                    }
-                    @Override
-                    public boolean offer(Runnable r) { return !threshold() && super.offer(r); }
-                },
+                "mpmc".equalsIgnoreCase(getAttr("sys.exec.queue", String.class, "lane")) ?
+                        // 无锁数组对列: 先进先出, 没有优先级
+                        new MpmcQueue<Runnable>(queueCapacity) {
+                            @Override
+                            public boolean offer(Runnable r) { return !upThread(size()) && super.offer(r); }
+                        } :
+                        // 多优先级等待对列 ServerTpl#async(Runnable, int)
+                        new LaneQueue<Runnable>(queueCapacity) {
+                            {
+                                aging(Duration.ofMillis(getAttr("sys.exec.agingTime", Long.class, 1000L)));
+                            }
+                            @Override
+                            public boolean offer(Runnable r) { return !upThread(super.size()) && super.offer(r); }
+                        },
                 new ThreadFactory() {
                     final AtomicLong i = new AtomicLong(1);
                     @Override
                     public Thread newThread(Runnable r) {
                         log.trace("New thread: {}", i.get());
-                        return new Thread(r, "sys-" + i.getAndIncrement());
+                        execThreads.incrementAndGet(); // 创建时计数: 线程启动前 threshold 就能看到
+                        return new Thread(() -> {
+                            Blocking.bind(compensator);
+                            try {
+                                r.run();
+                            } finally {
+                                execThreads.decrementAndGet();
+                            }
+                        }, "sys-" + i.getAndIncrement());
                     }
                 },
                 new ThreadPoolExecutor.CallerRunsPolicy()
         ) {
             @Override
             public void execute(Runnable cmd) {
-                super.execute(() -> {
-                    try { cmd.run(); } catch (Throwable ex) {
-                        log.error("", ex); // 只有这能拦截未知异常 ThreadPoolExecutor#runWorker
+                final CoDel codel = AppContext.this.codel;
+                // 只统计可被拒绝的优先级的排对时长: 高优先级的任务排对时长短, 不能说明低优先级的不过载
+                final long submitTime = codel != null && priority(cmd) <= codel.shedPriority ? System.nanoTime() : 0;
+                if (submitTime != 0 && cmd instanceof LaneQueue.Prioritized) {
+                    // 准入控制: 只拒绝带优先级的应用任务, 对列/事件等系统内部任务不拒绝
+                    if (getQueue() instanceof LaneQueue) { // 线程都阻塞时没有任务开始执行, 用对列头的等待时长补充
+                        codel.record(((LaneQueue<Runnable>) getQueue()).headWait(codel.shedPriority));
                     }
-                });
+                    final int priority = priority(cmd);
+                    if (!codel.admit(priority)) {
+                        throw new RejectedExecutionException("sys executor overloaded: queue delay over " + codel.target / 1_000_000 + "ms, reject priority " + priority + " task");
+                    }
+                }
+                final Runnable fn = () -> {
+                    if (submitTime != 0) codel.record(System.nanoTime() - submitTime);
+                    runSysTask(cmd); // 只有这能拦截未知异常 ThreadPoolExecutor#runWorker
+                };
+                // 保留优先级
+                super.execute(cmd instanceof LaneQueue.Prioritized ? LaneQueue.prioritized(fn, priority(cmd)) : fn);
             }
+
+            int priority(Runnable cmd) { return cmd instanceof LaneQueue.Prioritized ? ((LaneQueue.Prioritized) cmd).priority() : LaneQueue.NORMAL; }
         };
         if (getAttr("sys.exec.allowCoreThreadTimeOut", Boolean.class, false)) {
             exec.allowCoreThreadTimeOut(true);
         }
+        maxCompensation = getAttr("sys.exec.compensate", Boolean.class, true) ? getAttr("sys.exec.maxCompensation", Integer.class, corePoolSize) : 0;
+        if (getAttr("sys.exec.codel.enabled", Boolean.class, false)) {
+            codel = new CoDel(
+                    Duration.ofMillis(getAttr("sys.exec.codel.target", Long.class, 50L)),
+                    Duration.ofMillis(getAttr("sys.exec.codel.interval", Long.class, 500L)),
+                    getAttr("sys.exec.codel.shedPriority", Integer.class, LaneQueue.LOW)
+            );
+        }
+        if (getAttr("sys.exec.hillClimbing.enabled", Boolean.class, false)) {
+            final HillClimbing climber = new HillClimbing(corePoolSize, exec.getMaximumPoolSize(), Duration.ofMillis(getAttr("sys.exec.hillClimbing.target", Long.class, 50L)))
+                    .step(getAttr("sys.exec.hillClimbing.step", Integer.class, 1));
+            this.climber = climber;
+            final long interval = getAttr("sys.exec.hillClimbing.interval", Long.class, 500L);
+            // 采样和调整交给线程池(高优先级: 线程池忙时也能及时调整), 不在定时器线程执行
+            class Tick implements Runnable, LaneQueue.Prioritized {
+                @Override
+                public void run() {
+                    if (exec.isShutdown()) return;
+                    climb(exec, climber);
+                    Devourer.timer.get().schedule(this, interval, TimeUnit.MILLISECONDS, exec);
+                }
+
+                @Override
+                public int priority() { return LaneQueue.HIGH; }
+            }
+            Devourer.timer.get().schedule(new Tick(), interval, TimeUnit.MILLISECONDS, exec);
+        }
         return exec;
     });
     /**
-     * 系统线程池
+     * 系统线程池大小的爬山算法控制器. sys.exec.hillClimbing.enabled=true 时开启(代替 {@link #upThread(int)})
+     * 每 sys.exec.hillClimbing.interval 采样一次吞吐量和排对时长, 在 corePoolSize 和 maximumPoolSize 之间调整线程数
+     */
+    protected volatile HillClimbing climber;
+    /**
+     * 一次爬山采样和调整
+     * @param exec 系统线程池
+     * @param climber 控制器
+     */
+    protected void climb(ThreadPoolExecutor exec, HillClimbing climber) {
+        final BlockingQueue<Runnable> queue = exec.getQueue();
+        final int waiting = queue.size();
+        final long queueDelay = queue instanceof LaneQueue ? ((LaneQueue<Runnable>) queue).headWait(LaneQueue.HIGH) : waiting > 0 ? Long.MAX_VALUE : 0;
+        final int before = climber.size();
+        final int size = climber.next(exec.getCompletedTaskCount(), exec.getActiveCount(), waiting, queueDelay);
+        if (size == before) {
+            log.debug("sys executor hold: {}, waiting: {}", climber, waiting);
+            return;
+        }
+        log.info("sys executor resize: {} -> {}, waiting: {}, {}", before, size, waiting, climber);
+        resizeExec(exec, size, size);
+    }
+    /**
+     * 调整系统线程池大小(加上当前阻塞补偿的线程数)
+     * 增加核心线程数: 新任务提交时立即创建线程; 减少最大线程数: 空闲线程立即退出
+     * @param exec 系统线程池
+     * @param core 核心线程数
+     * @param max 最大线程数
+     */
+    protected void resizeExec(ThreadPoolExecutor exec, int core, int max) {
+        synchronized (compensator) {
+            final int n = compensated.get();
+            if (max + n >= exec.getCorePoolSize()) { // 先调整最大线程数: 核心线程数不能大于最大线程数
+                exec.setMaximumPoolSize(max + n);
+                exec.setCorePoolSize(core + n);
+            } else {
+                exec.setCorePoolSize(core + n);
+                exec.setMaximumPoolSize(max + n);
+            }
+        }
+    }
+    /**
+     * 系统线程池当前的线程数. 代替 {@link ThreadPoolExecutor#getPoolSize()}(要加锁)
+     */
+    protected final AtomicInteger execThreads = new AtomicInteger();
+    /**
+     * 等待任务数达到当前线程数的这个比例时创建新线程 sys.exec.upThreadThreshold
+     */
+    protected volatile double upThreadThreshold;
+    /**
+     * 让线程池创建(除核心线程外)新的线程的临界条件
+     * 核心线程已满才会触发此方法(入对时)
+     * 慢创建: 按当前池中的线程数和等待任务数增长
+     * 考虑点1: 系统内部添加任务, 有可能会被等待, 造成没有那么多任务的假象. 所以不能用size去比较
+     *      即: 当所有线程都处于执行状态时, 刚好有一个添加任务添加后也只是等待执行, 没有突破添加线程的条件(除非有多个添加任务)
+     *      super.size() > 1 && _exec.get().getPoolSize() < _exec.get().getMaximumPoolSize();
+     * 每次提交任务都会调用: 只读原子计数, 不加锁
+     * @param waiting 等待对列中的任务数
+     * @return true: 创建新线程
+     */
+    protected boolean upThread(int waiting) {
+        if (climber != null) return false; // 由爬山算法控制器调整
+        // 这个 size > 1: 有时 添加任务后 size==1, 但还没被poll, 但线程还有空闲,就是取size的值有时稍快于线程poll任务
+        if (waiting <= 1) return false;
+        int ps = execThreads.get();
+        // 不超过最大线程数
+        if (ps >= _exec.get().getMaximumPoolSize()) return false;
+        // 所有线程都在忙并且有超过一定比例的当前忙的线程的任务在等待, 非关闭状态
+        return waiting >= (int) (ps * upThreadThreshold) && (!shutdownHook.isAlive());
+    }
+    /**
+     * 系统线程池的阻塞补偿 {@link Blocking}: 线程阻塞期间临时增加一个线程(同时增加核心线程数和最大线程数), 阻塞结束后收回
+     * 最多同时补偿 {@link #maxCompensation} 个
+     */
+    protected final Blocking.Compensator compensator = new Blocking.Compensator() {
+        @Override
+        public boolean begin() {
+            final ThreadPoolExecutor exec = _exec.get();
+            synchronized (this) { // 和 resizeExec 互斥: 调整大小时 compensated 与实际补偿的一致
+                if (compensated.get() >= maxCompensation) return false;
+                compensated.incrementAndGet();
+                // 先增加最大线程数, 再增加核心线程数(会立即创建线程执行等待中的任务)
+                exec.setMaximumPoolSize(exec.getMaximumPoolSize() + 1);
+                exec.setCorePoolSize(exec.getCorePoolSize() + 1);
+            }
+            return true;
+        }
+
+        @Override
+        public void end() {
+            final ThreadPoolExecutor exec = _exec.get();
+            synchronized (this) {
+                exec.setCorePoolSize(exec.getCorePoolSize() - 1);
+                exec.setMaximumPoolSize(exec.getMaximumPoolSize() - 1);
+                compensated.decrementAndGet();
+            }
+        }
+    };
+    /**
+     * 当前补偿的线程个数
+     */
+    protected final AtomicInteger compensated = new AtomicInteger();
+    /**
+     * 最多同时补偿的线程个数. 0: 不补偿
+     * sys.exec.maxCompensation(默认: 核心线程数); sys.exec.compensate=false 关闭
+     */
+    protected volatile int maxCompensation;
+    /**
+     * 阻塞调用线程池(弹性: 按需创建线程, 空闲回收) {@link ServerTpl#blocking(Callable)}
+     * 阻塞调用(JDBC, http, 文件等)放在单独的线程池中, 系统线程池只执行不阻塞的任务, 线程数按cpu核数配置就够了
+     */
+    protected final Lazier<ThreadPoolExecutor> _blockingExec = new Lazier<>(() -> {
+        log.debug("init blocking executor ...");
+        final int maxPoolSize = getAttr("sys.blocking.maxPoolSize", Integer.class, Math.max(64, Runtime.getRuntime().availableProcessors() * 8));
+        final ThreadPoolExecutor exec = new ThreadPoolExecutor(maxPoolSize, maxPoolSize,
+                getAttr("sys.blocking.keepAliveTime", Long.class, 60L), TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(getAttr("sys.blocking.queueCapacity", Integer.class, 10000)),
+                new ThreadFactory() {
+                    final AtomicLong i = new AtomicLong(1);
+                    @Override
+                    public Thread newThread(Runnable r) { return new Thread(r, "blocking-" + i.getAndIncrement()); }
+                }
+        ) {
+            @Override
+            public void execute(Runnable cmd) {
+                super.execute(() -> {
+                    try { cmd.run(); } catch (Throwable ex) {
+                        log.error("", ex);
+                    }
+                });
+            }
+        };
+        exec.allowCoreThreadTimeOut(true); // 弹性: 空闲线程回收
+        return exec;
+    });
+    /**
+     * 阻塞调用线程池
      * @return {@link ExecutorService}
      */
-    public ExecutorService exec() { return _exec.get(); }
+    public ExecutorService blockingExec() { return _blockingExec.get(); }
+    /**
+     * 工作窃取线程池(sys.exec.type=forkjoin)
+     * 每个线程有自己的任务对列, 空闲线程从其它线程的对列尾部窃取任务: 多核下提交/执行任务不再竞争同一个对列的锁
+     * 并行度为 sys.exec.corePoolSize; 线程阻塞补偿(ForkJoinPool#managedBlock {@link Blocking})时最多 sys.exec.maximumPoolSize 个线程(JDK9+)
+     */
+    protected final Lazier<ForkJoinPool> _forkJoin = new Lazier<>(() -> {
+        log.debug("init sys fork join pool ...");
+        int processorCount = Runtime.getRuntime().availableProcessors();
+        final int parallelism = Math.max(2, getAttr("sys.exec.corePoolSize", Integer.class, processorCount >= 4 ? 8 : 4));
+        final int maxPoolSize = Math.max(parallelism, getAttr("sys.exec.maximumPoolSize", Integer.class, processorCount <= 8 ? 16 : Math.min(processorCount * 2, 64)));
+        final AtomicLong i = new AtomicLong(1);
+        final ForkJoinPool.ForkJoinWorkerThreadFactory factory = pool -> {
+            final ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            t.setName("sys-fj-" + i.getAndIncrement());
+            return t;
+        };
+        final Thread.UncaughtExceptionHandler handler = (t, ex) -> log.error(t.getName(), ex);
+        try { // JDK9+: 可限制最大线程数, 空闲回收
+            return ForkJoinPool.class.getConstructor(
+                    int.class, ForkJoinPool.ForkJoinWorkerThreadFactory.class, Thread.UncaughtExceptionHandler.class, boolean.class,
+                    int.class, int.class, int.class, java.util.function.Predicate.class, long.class, TimeUnit.class
+            ).newInstance(
+                    parallelism, factory, handler, true, // asyncMode: 提交的任务先进先出
+                    0, maxPoolSize, 1, null, getAttr("sys.exec.keepAliveTime", Long.class, 6L), TimeUnit.HOURS
+            );
+        } catch (NoSuchMethodException ex) {
+            return new ForkJoinPool(parallelism, factory, handler, true);
+        } catch (ReflectiveOperationException ex) {
+            throw new RuntimeException(ex);
+        }
+    });
+    /**
+     * 系统执行器: 按 sys.exec.type 选择
+     * pool(默认): 系统线程池 {@link #_exec}
+     * virtual: 每个任务一个虚拟线程(JDK21+), 适合大量阻塞IO的任务. 对列的并发控制不变; 没有优先级和准入控制. 当前JDK不支持时使用系统线程池
+     * forkjoin: 工作窃取线程池 {@link #_forkJoin}, 适合多核大量短任务. 没有优先级和准入控制
+     */
+    protected final Lazier<ExecutorService> _sysExec = new Lazier<>(() -> {
+        final String type = getAttr("sys.exec.type", String.class, "pool");
+        if ("forkjoin".equalsIgnoreCase(type)) {
+            final ForkJoinPool pool = _forkJoin.get();
+            return new AbstractExecutorService() {
+                @Override
+                public void execute(Runnable cmd) { pool.execute(() -> runSysTask(cmd)); } // 不用 ForkJoinTask 记录异常
+                @Override
+                public void shutdown() { pool.shutdown(); }
+                @Override
+                public List<Runnable> shutdownNow() { return pool.shutdownNow(); }
+                @Override
+                public boolean isShutdown() { return pool.isShutdown(); }
+                @Override
+                public boolean isTerminated() { return pool.isTerminated(); }
+                @Override
+                public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+                    return pool.awaitTermination(timeout, unit);
+                }
+                @Override
+                public String toString() { return pool.toString(); }
+            };
+        }
+        if ("virtual".equalsIgnoreCase(type)) {
+            final ExecutorService exec = virtualExec();
+            if (exec != null) return exec;
+            log.warn("sys.exec.type=virtual requires JDK 21+, use thread pool. java.version: {}", System.getProperty("java.version"));
+        } else if (!"pool".equalsIgnoreCase(type)) {
+            log.warn("Unknown sys.exec.type: {}, use thread pool", type);
+        }
+        return _exec.get();
+    });
+    /**
+     * 执行系统任务: 拦截所有异常, 统计开始前已结束的任务 {@link Deadline.Bound}
+     * @param cmd 任务
+     */
+    protected void runSysTask(Runnable cmd) {
+        try {
+            if (cmd instanceof Deadline.Bound) { // 开始前已过截止时间或已取消: 不执行
+                if (!((Deadline.Bound) cmd).runIfLive()) execExpired.increment();
+            } else cmd.run();
+        } catch (Throwable ex) {
+            log.error("", ex);
+        }
+    }
+    /**
+     * 虚拟线程执行中的任务个数
+     */
+    protected final AtomicInteger virtualActive = new AtomicInteger();
+    /**
+     * 虚拟线程执行完成的任务个数
+     */
+    protected final LongAdder virtualCompleted = new LongAdder();
+    /**
+     * 创建虚拟线程执行器(每个任务一个虚拟线程)
+     * 源码兼容java8: 通过反射调用 JDK21 的 Thread.ofVirtual(), Executors.newThreadPerTaskExecutor(ThreadFactory)
+     * @return null: 当前JDK不支持
+     */
+    protected ExecutorService virtualExec() {
+        final ExecutorService exec;
+        try {
+            final Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "sys-v-", 1L);
+            final ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            exec = (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            log.debug("Virtual thread unsupported: {}", ex.toString());
+            return null;
+        }
+        log.debug("init sys virtual thread executor ...");
+        return new AbstractExecutorService() {
+            @Override
+            public void execute(Runnable cmd) {
+                exec.execute(() -> {
+                    virtualActive.incrementAndGet();
+                    try {
+                        runSysTask(cmd);
+                    } finally {
+                        virtualActive.decrementAndGet();
+                        virtualCompleted.increment();
+                    }
+                });
+            }
+            @Override
+            public void shutdown() { exec.shutdown(); }
+            @Override
+            public List<Runnable> shutdownNow() { return exec.shutdownNow(); }
+            @Override
+            public boolean isShutdown() { return exec.isShutdown(); }
+            @Override
+            public boolean isTerminated() { return exec.isTerminated(); }
+            @Override
+            public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+                return exec.awaitTermination(timeout, unit);
+            }
+            @Override
+            public String toString() { return "VirtualThreadExecutor{active: " + virtualActive.get() + ", completed: " + virtualCompleted.sum() + "}"; }
+        };
+    }
+    /**
+     * 系统线程池按排对时长的准入控制. sys.exec.codel.enabled=true 时开启
+     * 过载时(排对时长持续超过 sys.exec.codel.target) 拒绝优先级不高于 sys.exec.codel.shedPriority 的新任务(抛出 {@link RejectedExecutionException})
+     */
+    protected volatile CoDel codel;
+    /**
+     * 统计: 系统线程池中开始前已过截止时间或已取消的任务个数 {@link Deadline}
+     */
+    protected final LongAdder execExpired = new LongAdder();
+    /**
+     * 系统执行器(默认: 系统线程池) sys.exec.type
+     * @return {@link ExecutorService}
+     */
+    public ExecutorService exec() { return _sysExec.get(); }
+
+    /**
+     * 对列加权公平调度器
+     * 开启(sys.queue.fair=true)后, {@link #queue(String, Runnable)} 创建的对列按权重(sys.queue.对列名.weight)公平使用系统线程池
+     */
+    protected final Lazier<FairScheduler> _scheduler = new Lazier<>(() -> {
+        log.debug("init queue fair scheduler ...");
+        final ExecutorService exec = exec();
+        return new FairScheduler(exec, getAttr("sys.queue.fair.maxInflight", Integer.class,
+                exec instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) exec).getMaximumPoolSize() :
+                        _forkJoin.done() ? _forkJoin.get().getParallelism() : Math.max(64, Runtime.getRuntime().availableProcessors() * 8)
+        ));
+    });
 
     /**
      * 初始化 事件中心
@@ -156,6 +510,10 @@ public class AppContext {
      */
     public EP ep() { return _ep.get(); }
 
+    /**
+     * 运行时设置的属性 {@link #setAttr(String, Object)}. 重新加载配置 {@link #reloadEnv()} 后仍然有效
+     */
+    protected final Map<String, Object> attrOverrides = new ConcurrentHashMap<>();
     /**
      * 环境属性配置.只支持properties文件, 支持${}属性替换
      * 加载顺序(优先级从小到大):
@@ -164,6 +522,7 @@ public class AppContext {
      * configdir:app.properties, configdir:app-[profile].properties
      * {@link #customEnv(Map)}
      * System.getProperties()
+     * {@link #setAttr(String, Object)}
      */
     private final Lazier<Map<String, Object>> _env = new Lazier<>(() -> {
         final Map<String, Object> result = new ConcurrentHashMap<>(); // 结果属性集
@@ -263,6 +622,7 @@ public class AppContext {
         }.run();
 
         System.getProperties().forEach((k, v) -> result.put(k.toString(), v));
+        result.putAll(attrOverrides);
         return result;
     });
     /**
@@ -271,6 +631,26 @@ public class AppContext {
     public Map<String, Object> env() { return _env.get(); }
 
 
+    /**
+     * 设置属性(运行时覆盖配置)
+     * 重新加载配置 {@link #reloadEnv()} 后仍然有效. 直接修改 {@link #env()} 的, 重新加载配置后以配置为准
+     * @param key 属性key
+     * @param value 属性值. null: 删除此属性
+     * @return {@link AppContext}
+     */
+    public AppContext setAttr(String key, Object value) {
+        if (key == null || key.isEmpty()) throw new IllegalArgumentException("Param key required");
+        if (value == null) {
+            attrOverrides.remove(key);
+            env().remove(key);
+        } else {
+            attrOverrides.put(key, value);
+            env().put(key, value);
+        }
+        return this;
+    }
+
+
     /**
      * 启动
      */
@@ -345,24 +725,222 @@ public class AppContext {
     /**
      * 加入到对列行器执行函数
      * 每个对列里面的函数同一时间只执行一个, 各对列相互执行互不影响
+     * fn 为空时只获取对列(用于设置 speed, parallel等): 这样获取过的对列不会被空闲回收(sys.queue.idleTimeout), 设置一直有效
+     * NOTE: 只通过入对(fn 不为空)返回的对列去设置, 被空闲回收再重新创建后, 之前的设置不再有效
      * @param qName 对列名
      * @param fn 要执行的函数
      * @return {@link Devourer}
      */
     public Devourer queue(String qName, Runnable fn) {
         if (qName == null || qName.isEmpty()) throw new IllegalArgumentException("Param qName required");
-        Devourer devourer = queues.get(qName);
-        if (devourer == null) {
-            synchronized (queues) {
-                devourer = queues.get(qName);
-                if (devourer == null) {
-                    devourer = new Devourer(qName, exec());
-                    queues.put(qName, devourer);
+        if (fn == null) {
+            pinnedQueues.add(qName);
+            return queues.computeIfAbsent(qName, this::newQueue);
+        }
+        // 在 compute 中标记正在入对, 空闲回收(也在 compute 中)不会回收正在入对的对列
+        final Devourer devourer = queues.compute(qName, (n, d) -> {
+            if (d == null) d = newQueue(n);
+            d.offering.incrementAndGet();
+            return d;
+        });
+        try {
+            devourer.offer(fn);
+        } finally {
+            devourer.offering.decrementAndGet();
+        }
+        return devourer;
+    }
+
+
+    /**
+     * 创建对列
+     * @param qName 对列名
+     * @return {@link Devourer}
+     */
+    protected Devourer newQueue(String qName) {
+        _evictQueue.get(); // 第一次创建对列时启动空闲回收
+        return new Devourer(qName, getAttr("sys.queue.fair", Boolean.class, false) ? _scheduler.get().lane(qName, getAttr("sys.queue." + qName + ".weight", Integer.class, 1)) : exec());
+    }
+
+
+    /**
+     * 对列空闲回收
+     * 没有排对和执行中的任务并且空闲超过 sys.queue.idleTimeout(单位: 秒) 的对列从 {@link #queues} 中移除, 下次使用时重新创建
+     * 默认: 0 不回收. 适合: 按租户, 会话等动态命名的对列
+     * 通过 queue(qName, null) 获取(设置)过的对列 {@link #pinnedQueues} 不回收: 回收后重新创建的对列没有之前的设置
+     * 值: 空闲时长(单位: ns). 第一次创建对列时开始定时检查
+     */
+    protected final Lazier<Long> _evictQueue = new Lazier<>(() -> {
+        final long idleTimeout = TimeUnit.SECONDS.toNanos(getAttr("sys.queue.idleTimeout", Long.class, 0L));
+        if (idleTimeout <= 0) return 0L;
+        final long interval = Math.max(TimeUnit.SECONDS.toNanos(1), idleTimeout / 2);
+        final Runnable sweep = new Runnable() {
+            @Override
+            public void run() {
+                int count = 0;
+                for (String qName : queues.keySet()) {
+                    if (pinnedQueues.contains(qName)) continue;
+                    final boolean[] evicted = {false};
+                    queues.computeIfPresent(qName, (n, d) -> {
+                        if (!d.isIdle(idleTimeout)) return d;
+                        evicted[0] = true;
+                        return null;
+                    });
+                    if (evicted[0]) count++;
                 }
+                if (count > 0) log.debug("Evicted {} idle queues, left: {}", count, queues.size());
+                Devourer.timer.get().schedule(this, interval, TimeUnit.NANOSECONDS, exec());
             }
+        };
+        Devourer.timer.get().schedule(sweep, interval, TimeUnit.NANOSECONDS, exec());
+        return idleTimeout;
+    });
+
+
+    /**
+     * 获取按key分组的对列执行器
+     * 同一个key的任务按顺序执行, 不同key的任务并发执行
+     * @param qName 对列名
+     * @return {@link KeyedDevourer}
+     */
+    public KeyedDevourer keyedQueue(String qName) {
+        if (qName == null || qName.isEmpty()) throw new IllegalArgumentException("Param qName required");
+        return keyedQueues.computeIfAbsent(qName, n -> new KeyedDevourer(n, exec()));
+    }
+
+
+    /**
+     * 获取分段流水线
+     * 第一次获取时创建, 之后添加段(stage). 各段使用系统线程池
+     * NOTE: 同一个流水线名要使用同一个输入类型 T(由调用方保证, 所以这里的转换是未检查的)
+     * @param pName 流水线名
+     * @return {@link Pipeline}
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Pipeline<T, T> pipeline(String pName) {
+        if (pName == null || pName.isEmpty()) throw new IllegalArgumentException("Param pName required");
+        return (Pipeline<T, T>) pipelines.computeIfAbsent(pName, n -> new Pipeline<T, T>(n, exec()));
+    }
+
+
+    /**
+     * 所有对列的统计快照 {@link Devourer#stats()}
+     * ep.fire("sys.queues.stats")
+     * @return 对列名 -> 统计数据. 流水线为: pipeline:流水线名 -> 段名 -> 统计数据
+     */
+    @EL(name = "sys.queues.stats")
+    public Map<String, Object> queuesStats() {
+        final Map<String, Object> data = new TreeMap<>();
+        queues.forEach((qName, devourer) -> data.put(qName, devourer.stats()));
+        pipelines.forEach((pName, pipeline) -> data.put("pipeline:" + pName, pipeline.stats()));
+        return data;
+    }
+
+
+    /**
+     * 系统线程池的统计快照
+     * ep.fire("sys.exec.stats")
+     * 虚拟线程(sys.exec.type=virtual)时只有 activeCount, completed, expired
+     * 工作窃取线程池(sys.exec.type=forkjoin)时 steals: 窃取的任务个数, 没有 completed
+     * expired: 开始前已过截止时间或已取消, 没有执行的任务个数 {@link Deadline}
+     * compensated: 当前阻塞补偿的线程个数 {@link Blocking}
+     * codel: 准入控制 {@link CoDel#stats()}
+     * hillClimbing: 线程池大小控制器 {@link HillClimbing#stats()}
+     * bulkheads: 各个服务的线程池隔离舱 {@link Bulkhead#stats()}
+     * @return 统计数据
+     */
+    @EL(name = "sys.exec.stats")
+    public Map<String, Object> execStats() {
+        final Map<String, Object> data = new LinkedHashMap<>();
+        final ExecutorService sys = exec();
+        if (sys instanceof ThreadPoolExecutor) {
+            final ThreadPoolExecutor exec = (ThreadPoolExecutor) sys;
+            data.put("poolSize", exec.getPoolSize());
+            data.put("activeCount", exec.getActiveCount());
+            data.put("waitingCount", exec.getQueue().size());
+            data.put("completed", exec.getCompletedTaskCount());
+        } else if (_forkJoin.done()) {
+            final ForkJoinPool pool = _forkJoin.get();
+            data.put("poolSize", pool.getPoolSize());
+            data.put("activeCount", pool.getActiveThreadCount());
+            data.put("waitingCount", pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount());
+            data.put("steals", pool.getStealCount());
+        } else { // 虚拟线程
+            data.put("activeCount", virtualActive.get());
+            data.put("completed", virtualCompleted.sum());
         }
-        if (fn != null) devourer.offer(fn);
-        return devourer;
+        data.put("expired", execExpired.sum());
+        data.put("compensated", compensated.get());
+        final CoDel codel = this.codel;
+        if (codel != null) data.put("codel", codel.stats());
+        final HillClimbing climber = this.climber;
+        if (climber != null) data.put("hillClimbing", climber.stats());
+        if (!bulkheads.isEmpty()) {
+            final Map<String, Object> bs = new TreeMap<>();
+            bulkheads.forEach((n, b) -> bs.put(n, b.stats()));
+            data.put("bulkheads", bs);
+        }
+        return data;
+    }
+
+
+    /**
+     * 运行时调整系统线程池, 不用重启
+     * ep.fire("sys.exec.tune", Map) 或修改配置后 ep.fire("sys.env.reload")
+     * 可调整: corePoolSize, maximumPoolSize, keepAliveTime(单位: 小时), upThreadThreshold, maxCompensation. 没有的保持不变
+     * 开启了爬山算法(sys.exec.hillClimbing.enabled)时, corePoolSize 和 maximumPoolSize 为其调整范围
+     * @param attrs 属性(不带前缀 sys.exec.)
+     * @return 调整后的配置
+     */
+    @EL(name = "sys.exec.tune")
+    public Map<String, Object> tuneExec(Map<String, Object> attrs) {
+        if (!(exec() instanceof ThreadPoolExecutor)) {
+            log.warn("sys.exec.tune only supports sys.exec.type=pool, current: {}", exec());
+            return Collections.emptyMap();
+        }
+        final ThreadPoolExecutor exec = (ThreadPoolExecutor) exec();
+        final Map<String, Object> data = new LinkedHashMap<>();
+        synchronized (compensator) { // 和阻塞补偿, 爬山算法的调整互斥
+            final int n = compensated.get();
+            final Integer core = Utils.to(attrs.get("corePoolSize"), Integer.class), max = Utils.to(attrs.get("maximumPoolSize"), Integer.class);
+            final int newCore = core == null ? exec.getCorePoolSize() - n : core;
+            final int newMax = max == null ? Math.max(newCore, exec.getMaximumPoolSize() - n) : max;
+            if (newCore < 1 || newMax < newCore) throw new IllegalArgumentException("sys.exec.tune: 1 <= corePoolSize <= maximumPoolSize");
+            final HillClimbing climber = this.climber;
+            if (climber != null) {
+                climber.range(newCore, newMax);
+                resizeExec(exec, climber.size(), climber.size());
+            } else resizeExec(exec, newCore, newMax);
+            data.put("corePoolSize", newCore);
+            data.put("maximumPoolSize", newMax);
+        }
+        final Long keepAliveTime = Utils.to(attrs.get("keepAliveTime"), Long.class);
+        if (keepAliveTime != null) exec.setKeepAliveTime(keepAliveTime, TimeUnit.HOURS);
+        data.put("keepAliveTime", exec.getKeepAliveTime(TimeUnit.HOURS));
+        final Double threshold = Utils.to(attrs.get("upThreadThreshold"), Double.class);
+        if (threshold != null) upThreadThreshold = threshold;
+        data.put("upThreadThreshold", upThreadThreshold);
+        final Integer compensation = Utils.to(attrs.get("maxCompensation"), Integer.class);
+        if (compensation != null) maxCompensation = compensation; // 已补偿的线程在阻塞结束后收回
+        data.put("maxCompensation", maxCompensation);
+        // 同步到环境属性: getAttr 读到的是当前值
+        data.forEach((k, v) -> env().put("sys.exec." + k, v));
+        log.info("sys executor tuned: {}", data);
+        return data;
+    }
+
+
+    /**
+     * 重新加载环境属性配置(配置文件, 系统属性), 并按新的配置调整系统线程池 {@link #tuneExec(Map)}
+     * 配置中删除的属性不再存在. 只保留通过 {@link #setAttr(String, Object)} 设置的属性
+     * ep.fire("sys.env.reload")
+     */
+    @EL(name = "sys.env.reload")
+    public void reloadEnv() {
+        _env.clear();
+        env();
+        log.info("Reloaded env");
+        if (_exec.done() || _sysExec.done()) tuneExec(attrs("sys.exec"));
     }
 
 
@@ -446,59 +1024,42 @@ public class AppContext {
 
 
     /**
-     * 为 source 包装 Executor
+     * 为 source 包装 Executor: 服务的线程池隔离舱 {@link Bulkhead}
      * 当系统线程池忙的时候, 会为创建服务创建一个独用的线程池:
      *      抵御流量突发,同时保证各个业务的任务隔离(即使流量突发也不会影响其他业务导致整个系统被拖垮),
      *      另外还可以抵御线程池隔离时各个业务设置不合理导致的资源分配不均,任务阻塞或者空转问题
      * 分发新任务策略: 当系统线程池忙, 则使用服务自己的线程池; 默认都用系统线程池
+     * 配置(服务名.exec.*): minShare(保底份额, 默认1), maxShare(最多份额, 默认不限), maxPoolSize(自己线程池的最大线程数, 默认4, 0: 不溢出),
+     *      keepAliveTime(空闲回收时间, 单位: 秒, 默认60), queueCapacity(自己线程池的等待对列容量, 默认1000)
      * @param source 源对象
      * @return {@link Executor}
      */
     protected Executor wrapExecForSource(Object source) {
-        return new ExecutorService() {
-            @Override
-            public void shutdown() {}
-            @Override
-            public List<Runnable> shutdownNow() { return emptyList(); }
-            @Override
-            public boolean isShutdown() { return _exec.get().isShutdown(); }
-            @Override
-            public boolean isTerminated() { return _exec.get().isTerminated(); }
-            @Override
-            public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
-                return _exec.get().awaitTermination(timeout, unit);
-            }
-            @Override
-            public <T> Future<T> submit(Callable<T> task) { return _exec.get().submit(task); }
-            @Override
-            public <T> Future<T> submit(Runnable task, T result) { return _exec.get().submit(task, result); }
-            @Override
-            public Future<?> submit(Runnable task) { return _exec.get().submit(task); }
-            @Override
-            public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
-                return _exec.get().invokeAll(tasks);
-            }
-            @Override
-            public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException {
-                return _exec.get().invokeAll(tasks, timeout, unit);
-            }
-            @Override
-            public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
-                return _exec.get().invokeAny(tasks);
-            }
-            @Override
-            public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-                return _exec.get().invokeAny(tasks, timeout, unit);
-            }
-            @Override
-            public void execute(Runnable cmd) { _exec.get().execute(cmd); }
-            public int getCorePoolSize() { return _exec.done() ? _exec.get().getCorePoolSize() : 0; }
-            public int getMaximumPoolSize() { return _exec.done() ? _exec.get().getMaximumPoolSize() : 0; }
-            public int getWaitingCount() { return _exec.done() ? _exec.get().getQueue().size() : 0; }
-
-            @Override
-            public String toString() { return _exec.done() ? _exec.get().toString() : "uninitialized"; }
-        };
+        final String name = source == null ? "sys" : source instanceof ServerTpl ? ((ServerTpl) source).name :
+                source.getClass().getName().contains("$") ? source.getClass().getName() : source.getClass().getSimpleName();
+        return bulkheads.computeIfAbsent(name, n -> new Bulkhead(n, this::exec, this::execSaturated)
+                .minShare(getAttr(n + ".exec.minShare", Integer.class, 1))
+                .maxShare(getAttr(n + ".exec.maxShare", Integer.class, Integer.MAX_VALUE))
+                .overflow(
+                        getAttr(n + ".exec.maxPoolSize", Integer.class, 4),
+                        Duration.ofSeconds(getAttr(n + ".exec.keepAliveTime", Long.class, 60L)),
+                        getAttr(n + ".exec.queueCapacity", Integer.class, 1000)
+                )
+        );
+    }
+    /**
+     * 服务名 -> 服务的线程池隔离舱
+     */
+    protected final Map<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+    /**
+     * 系统线程池是否饱和: 线程数已达最大, 并且等待的任务数不少于线程数
+     * 只读原子计数和对列大小, 不加锁. 虚拟线程/工作窃取 执行器不饱和
+     */
+    protected boolean execSaturated() {
+        if (!_exec.done() || !(exec() instanceof ThreadPoolExecutor)) return false;
+        final ThreadPoolExecutor exec = _exec.get();
+        final int threads = execThreads.get();
+        return threads >= exec.getMaximumPoolSize() && exec.getQueue().size() >= threads;
     }
 
 
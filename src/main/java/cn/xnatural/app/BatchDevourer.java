@@ -0,0 +1,242 @@
+package cn.xnatural.app;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 批量对列执行器
+ * 逐个入队数据, 按批消费: 攒够 {@link #maxBatch} 个就消费一批, 不够一批时等待 {@link #linger} 时长后消费
+ * 同样支持 {@link Devourer} 的 并发(parallel), 失败保留(failMaxKeep), 暂停(suspend) 等特性
+ * 典型应用: 数据上报, 批量入库
+ * <pre>
+ * BatchDevourer&lt;Row&gt; q = new BatchDevourer&lt;Row&gt;("report", exec)
+ *     .maxBatch(200).linger(Duration.ofMillis(50))
+ *     .consumer(rows -&gt; db.batchInsert(rows));
+ * q.offer(row);
+ * </pre>
+ * @param <T> 数据类型
+ */
+public class BatchDevourer<T> extends Devourer {
+    /**
+     * 等待消费的数据
+     */
+    protected final Queue<T> items = new ConcurrentLinkedQueue<>();
+    /**
+     * 等待消费的数据个数
+     */
+    protected final AtomicInteger itemCount = new AtomicInteger();
+    /**
+     * 已入对列但还没取数据的批次数
+     */
+    protected final AtomicInteger batchCount = new AtomicInteger();
+    /**
+     * 是否已有一个 linger 定时在等待
+     */
+    protected final AtomicBoolean lingering = new AtomicBoolean(false);
+    /**
+     * 每批最多个数
+     */
+    protected int maxBatch = 100;
+    /**
+     * 不够一批时, 最多等待时长(单位: ms)
+     */
+    protected long linger = 100;
+    /**
+     * 批量消费函数
+     */
+    protected Consumer<List<T>> consumer;
+
+
+    /**
+     * 创建批量对列
+     * @param key 对列标识
+     * @param exec 线程池
+     */
+    public BatchDevourer(String key, Executor exec) { super(key, exec); }
+
+    /**
+     * 创建批量对列
+     * @param key 对列标识
+     */
+    public BatchDevourer(String key) { super(key); }
+
+
+    /**
+     * 数据入对列
+     * @param item 数据
+     * @return {@link BatchDevourer}
+     */
+    public BatchDevourer<T> offer(T item) {
+        if (item == null) return this;
+        items.offer(item);
+        int count = itemCount.incrementAndGet();
+        // 每攒够一批就提交一个批次
+        for (int batches = batchCount.get(); count / maxBatch > batches; batches = batchCount.get()) {
+            if (batchCount.compareAndSet(batches, batches + 1)) {
+                try {
+                    submitBatch();
+                } catch (RuntimeException ex) { // 对列满被拒绝: 这个数据也不入对
+                    if (items.remove(item)) itemCount.decrementAndGet();
+                    throw ex;
+                }
+                break;
+            }
+        }
+        lingerFlush();
+        return this;
+    }
+
+
+    /**
+     * 不够一批时, 等待 linger 时长后提交一个批次
+     */
+    protected void lingerFlush() {
+        if (itemCount.get() < 1 || batchCount.get() > 0) return;
+        if (!lingering.compareAndSet(false, true)) return;
+        timer.get().schedule(() -> {
+            lingering.set(false);
+            if (itemCount.get() > 0 && batchCount.get() < 1) {
+                batchCount.incrementAndGet();
+                try {
+                    submitBatch();
+                } catch (RejectedExecutionException ex) { // 对列满: linger 后再试
+                    lingerFlush();
+                }
+            }
+        }, linger, TimeUnit.MILLISECONDS, exec); // 入对可能阻塞或者直接执行, 交给线程池
+    }
+
+
+    /**
+     * 提交一个批次(已增加 {@link #batchCount}). 对列满被拒绝时回退 batchCount, 否则不会再提交新的批次
+     */
+    protected void submitBatch() {
+        try {
+            super.offer(new Batch());
+        } catch (RuntimeException ex) {
+            batchCount.decrementAndGet();
+            throw ex;
+        }
+    }
+
+
+    /**
+     * 还没取数据的批次被丢弃(对列满, 关闭): 回退 {@link #batchCount}, 剩下的数据等 linger 后再提交
+     */
+    @Override
+    protected void discard(Runnable fn) {
+        if (fn instanceof BatchDevourer.Batch && ((BatchDevourer<?>.Batch) fn).ls == null) {
+            batchCount.decrementAndGet();
+            lingerFlush();
+        } else super.discard(fn);
+    }
+
+
+    /**
+     * 从 {@link #items} 中取出一批数据
+     */
+    protected List<T> nextBatch() {
+        final List<T> ls = new ArrayList<>(Math.min(maxBatch, Math.max(itemCount.get(), 1)));
+        for (T item = null; ls.size() < maxBatch && (item = items.poll()) != null; ) {
+            ls.add(item);
+        }
+        itemCount.addAndGet(-ls.size());
+        return ls;
+    }
+
+
+    /**
+     * 一个批次
+     * 执行时才取数据, 这样消费慢的时候每批都尽量是满的
+     * 失败重试时(failMaxKeep) 使用同一批数据
+     */
+    protected class Batch implements Runnable {
+        protected List<T> ls;
+
+        @Override
+        public void run() {
+            if (ls == null) {
+                ls = nextBatch();
+                batchCount.decrementAndGet();
+                lingerFlush(); // 剩下不够一批的数据
+            }
+            if (ls.isEmpty()) return;
+            if (consumer == null) throw new IllegalStateException(key + " consumer required");
+            consumer.accept(ls);
+        }
+    }
+
+
+    /**
+     * 设置每批最多个数
+     * @param maxBatch >=1
+     * @return {@link BatchDevourer}
+     */
+    public BatchDevourer<T> maxBatch(int maxBatch) {
+        if (maxBatch < 1) throw new IllegalArgumentException("Param maxBatch >= 1");
+        this.maxBatch = maxBatch;
+        return this;
+    }
+
+
+    /**
+     * 设置不够一批时, 最多等待时长
+     * @param linger 等待时长
+     * @return {@link BatchDevourer}
+     */
+    public BatchDevourer<T> linger(Duration linger) {
+        if (linger == null || linger.isNegative()) throw new IllegalArgumentException("Param linger >= 0");
+        this.linger = linger.toMillis();
+        return this;
+    }
+
+
+    /**
+     * 设置批量消费函数
+     * @param consumer 消费函数
+     * @return {@link BatchDevourer}
+     */
+    public BatchDevourer<T> consumer(Consumer<List<T>> consumer) {
+        this.consumer = consumer;
+        return this;
+    }
+
+
+    /**
+     * 批量对列不支持 useLast: 会丢弃还没取数据的批次
+     */
+    @Override
+    public Devourer useLast(boolean useLast) {
+        if (useLast) throw new UnsupportedOperationException("BatchDevourer not support useLast");
+        return this;
+    }
+
+
+    /**
+     * 等待消费的数据个数
+     */
+    public int getItemCount() { return itemCount.get(); }
+
+
+    @Override
+    public void shutdown() {
+        items.clear();
+        itemCount.set(0);
+        super.shutdown();
+    }
+
+
+    @Override
+    public String toString() {
+        return key + "{parallel: " + getParallel() + ", waitingCount: " + getWaitingCount() + ", itemCount: " + getItemCount() + ", suspended: "+ isSuspended() + ", maxBatch: " + maxBatch + "}";
+    }
+}
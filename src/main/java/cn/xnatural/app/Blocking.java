@@ -0,0 +1,150 @@
+package cn.xnatural.app;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Supplier;
+
+/**
+ * 阻塞调用补偿(类似 {@link java.util.concurrent.ForkJoinPool.ManagedBlocker})
+ * 线程池的线程要阻塞(JDBC, http 等)时, 先通知线程池临时增加一个线程, 阻塞结束后再收回
+ * 这样少量阻塞调用不会让线程池中等待的任务都停下来, 线程池也不用一直按阻塞的情况配置很多线程
+ * 只对绑定了补偿器的线程有效 {@link #bind(Compensator)}(例: 系统线程池的线程)
+ * ForkJoinPool 的线程使用 {@link ForkJoinPool#managedBlock(ForkJoinPool.ManagedBlocker)}, 其它线程直接执行
+ * <pre>
+ * String html = Blocking.managed(() -&gt; http.get(url).execute());
+ * </pre>
+ */
+public class Blocking {
+    /**
+     * 当前线程的补偿状态
+     */
+    protected static final ThreadLocal<Worker> WORKER = new ThreadLocal<>();
+
+
+    /**
+     * 为当前线程绑定补偿器. 在线程池的线程开始时调用
+     * @param compensator 补偿器
+     */
+    public static void bind(Compensator compensator) {
+        if (compensator == null) WORKER.remove();
+        else WORKER.set(new Worker(compensator));
+    }
+
+
+    /**
+     * 执行一个阻塞调用: 当前线程绑定了补偿器时, 阻塞期间线程池临时增加一个线程
+     * 嵌套调用只补偿一次
+     * @param fn 阻塞函数
+     * @return 函数返回值
+     */
+    public static <T> T managed(Supplier<T> fn) {
+        final Worker worker = WORKER.get();
+        if (worker == null) {
+            if (!(Thread.currentThread() instanceof ForkJoinWorkerThread)) return fn.get();
+            WORKER.set(new Worker(null)); // 标记: 嵌套调用不再补偿
+            try {
+                return forkJoinManaged(fn);
+            } finally {
+                WORKER.remove();
+            }
+        }
+        if (worker.compensator == null) return fn.get();
+        if (worker.depth++ == 0) worker.compensated = worker.compensator.begin();
+        try {
+            return fn.get();
+        } finally {
+            if (--worker.depth == 0 && worker.compensated) {
+                worker.compensated = false;
+                worker.compensator.end();
+            }
+        }
+    }
+
+
+    /**
+     * 在 ForkJoinPool 的线程中执行阻塞调用: 阻塞期间 ForkJoinPool 按需增加线程保持并行度
+     * @param fn 阻塞函数
+     * @return 函数返回值
+     */
+    protected static <T> T forkJoinManaged(Supplier<T> fn) {
+        final ForkJoinBlocker<T> blocker = new ForkJoinBlocker<>(fn);
+        try {
+            ForkJoinPool.managedBlock(blocker);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+        if (blocker.ex instanceof RuntimeException) throw (RuntimeException) blocker.ex;
+        if (blocker.ex instanceof Error) throw (Error) blocker.ex;
+        if (blocker.ex != null) throw new RuntimeException(blocker.ex);
+        return blocker.result;
+    }
+
+
+    /**
+     * 执行一个阻塞调用 {@link #managed(Supplier)}
+     * @param fn 阻塞函数
+     */
+    public static void managedRun(Runnable fn) {
+        managed(() -> {
+            fn.run();
+            return null;
+        });
+    }
+
+
+    /**
+     * 补偿器: 由线程池实现
+     */
+    public interface Compensator {
+        /**
+         * 线程开始阻塞
+         * @return true: 已补偿(结束时会调用 {@link #end()}); false: 没有补偿(例: 超过补偿上限)
+         */
+        boolean begin();
+
+        /**
+         * 线程阻塞结束
+         */
+        void end();
+    }
+
+
+    protected static class ForkJoinBlocker<T> implements ForkJoinPool.ManagedBlocker {
+        protected final Supplier<T> fn;
+        protected T result;
+        protected Throwable ex;
+        protected boolean done;
+
+        protected ForkJoinBlocker(Supplier<T> fn) { this.fn = fn; }
+
+        @Override
+        public boolean block() {
+            try {
+                result = fn.get();
+            } catch (Throwable t) {
+                ex = t;
+            }
+            done = true;
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() { return done; }
+    }
+
+
+    protected static class Worker {
+        /**
+         * null: ForkJoinPool 的线程
+         */
+        protected final Compensator compensator;
+        /**
+         * 嵌套深度
+         */
+        protected int depth;
+        protected boolean compensated;
+
+        protected Worker(Compensator compensator) { this.compensator = compensator; }
+    }
+}
@@ -0,0 +1,274 @@
+package cn.xnatural.app;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * 服务的线程池隔离舱(bulkhead)
+ * 默认使用系统线程池. 系统线程池饱和时, 服务的新任务溢出到服务自己的小线程池(弹性: 按需创建线程, 空闲回收)
+ * 这样一个服务的突发流量只会在自己的线程池中排对, 不会让其它服务的任务排在后边等很久
+ * 保底份额: 服务在系统线程池中还没执行完的任务数少于 minShare 时, 新任务总是以高优先级({@link LaneQueue#HIGH})提交到系统线程池
+ * <pre>
+ * Bulkhead bulkhead = new Bulkhead("srv", app::exec, () -&gt; saturated).minShare(2).overflow(4, Duration.ofSeconds(60), 1000);
+ * bulkhead.execute(fn);
+ * </pre>
+ */
+public class Bulkhead extends AbstractExecutorService {
+    protected static final Logger log = LoggerFactory.getLogger(Bulkhead.class);
+    /**
+     * 服务名
+     */
+    protected final String name;
+    /**
+     * 系统线程池
+     */
+    protected final Supplier<ExecutorService> shared;
+    /**
+     * 系统线程池是否饱和
+     */
+    protected final BooleanSupplier saturated;
+    /**
+     * 保底份额: 在系统线程池中还没执行完的任务数少于此值时, 总是提交到系统线程池(高优先级)
+     */
+    protected volatile int minShare = 1;
+    /**
+     * 最多份额: 在系统线程池中还没执行完的任务数不超过此值, 超过的溢出到自己的线程池
+     */
+    protected volatile int maxShare = Integer.MAX_VALUE;
+    /**
+     * 自己的线程池: 最大线程数(0: 不溢出), 空闲回收时长(单位: ms), 等待对列容量
+     */
+    protected volatile int maxPoolSize = 4, queueCapacity = 1000;
+    protected volatile long keepAliveTime = TimeUnit.SECONDS.toMillis(60);
+    /**
+     * 在系统线程池中还没执行完的任务数
+     */
+    protected final AtomicInteger inflight = new AtomicInteger();
+    /**
+     * 统计: 溢出到自己线程池的任务数, 自己线程池满拒绝的任务数
+     */
+    protected final LongAdder overflowed = new LongAdder(), rejected = new LongAdder();
+    /**
+     * 自己的线程池(第一次溢出时创建)
+     */
+    protected final Lazier<ThreadPoolExecutor> _overflow = new Lazier<>(() -> {
+        log.debug("init bulkhead executor for '{}' ...", getName());
+        final ThreadPoolExecutor exec = new ThreadPoolExecutor(maxPoolSize, maxPoolSize, keepAliveTime, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(queueCapacity),
+                new ThreadFactory() {
+                    final AtomicLong i = new AtomicLong(1);
+                    @Override
+                    public Thread newThread(Runnable r) { return new Thread(r, getName() + "-" + i.getAndIncrement()); }
+                }
+        );
+        exec.allowCoreThreadTimeOut(true); // 弹性: 空闲线程回收
+        return exec;
+    });
+
+
+    /**
+     * 创建隔离舱
+     * @param name 服务名
+     * @param shared 系统线程池
+     * @param saturated 系统线程池是否饱和
+     */
+    public Bulkhead(String name, Supplier<ExecutorService> shared, BooleanSupplier saturated) {
+        if (shared == null) throw new IllegalArgumentException("Param shared required");
+        if (saturated == null) throw new IllegalArgumentException("Param saturated required");
+        this.name = name == null ? "bulkhead" : name;
+        this.shared = shared;
+        this.saturated = saturated;
+    }
+
+
+    /**
+     * 设置保底份额
+     * @param minShare 在系统线程池中还没执行完的任务数少于此值时, 总是提交到系统线程池
+     * @return {@link Bulkhead}
+     */
+    public Bulkhead minShare(int minShare) {
+        if (minShare < 0) throw new IllegalArgumentException("Param minShare >= 0");
+        this.minShare = minShare;
+        return this;
+    }
+
+
+    /**
+     * 设置最多份额
+     * @param maxShare 在系统线程池中还没执行完的任务数不超过此值
+     * @return {@link Bulkhead}
+     */
+    public Bulkhead maxShare(int maxShare) {
+        if (maxShare < 1) throw new IllegalArgumentException("Param maxShare >= 1");
+        this.maxShare = maxShare;
+        return this;
+    }
+
+
+    /**
+     * 设置自己的线程池. 第一次溢出之前设置有效
+     * @param maxPoolSize 最大线程数. 0: 不溢出, 一直用系统线程池
+     * @param keepAliveTime 空闲线程回收时长
+     * @param queueCapacity 等待对列容量. 满了拒绝新任务({@link RejectedExecutionException})
+     * @return {@link Bulkhead}
+     */
+    public Bulkhead overflow(int maxPoolSize, Duration keepAliveTime, int queueCapacity) {
+        if (maxPoolSize < 0) throw new IllegalArgumentException("Param maxPoolSize >= 0");
+        if (keepAliveTime == null || keepAliveTime.isNegative() || keepAliveTime.isZero()) throw new IllegalArgumentException("Param keepAliveTime > 0");
+        if (queueCapacity < 1) throw new IllegalArgumentException("Param queueCapacity >= 1");
+        this.maxPoolSize = maxPoolSize;
+        this.keepAliveTime = keepAliveTime.toMillis();
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+
+    @Override
+    public void execute(Runnable cmd) {
+        if (cmd == null) throw new NullPointerException();
+        final int n = inflight.incrementAndGet();
+        if (n <= minShare || maxPoolSize < 1 || (n <= maxShare && !saturated.getAsBoolean())) {
+            try {
+                shared.get().execute(track(cmd, n <= minShare));
+                return;
+            } catch (RuntimeException ex) {
+                inflight.decrementAndGet();
+                throw ex;
+            }
+        }
+        inflight.decrementAndGet();
+        // 溢出到自己的线程池
+        overflowed.increment();
+        try {
+            _overflow.get().execute(() -> {
+                try {
+                    cmd.run();
+                } catch (Throwable ex) {
+                    log.error("", ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            rejected.increment();
+            throw new RejectedExecutionException("Bulkhead '" + name + "' full", ex);
+        }
+    }
+
+
+    /**
+     * 包装提交到系统线程池的任务: 执行完(或没执行)时减少 inflight
+     * 保留任务的优先级和截止时间 {@link LaneQueue.Prioritized}, {@link Deadline.Bound}
+     * @param cmd 任务
+     * @param guaranteed 保底份额内: 以高优先级提交
+     * @return 包装的任务
+     */
+    protected Runnable track(Runnable cmd, boolean guaranteed) {
+        final Runnable fn = () -> {
+            try {
+                cmd.run();
+            } finally {
+                inflight.decrementAndGet();
+            }
+        };
+        final int priority = guaranteed ? LaneQueue.HIGH : cmd instanceof LaneQueue.Prioritized ? ((LaneQueue.Prioritized) cmd).priority() : -1;
+        if (cmd instanceof Deadline.Bound) { // 没有执行时: 减少 inflight, 并让原任务执行它的过期回调
+            return ((Deadline.Bound) cmd).deadline().bind(fn, priority < 0 ? LaneQueue.NORMAL : priority, () -> {
+                inflight.decrementAndGet();
+                cmd.run();
+            });
+        }
+        return priority < 0 ? fn : LaneQueue.prioritized(fn, priority);
+    }
+
+
+    public String getName() { return name; }
+
+
+    /**
+     * 系统线程池的核心线程数. 不是 {@link ThreadPoolExecutor} 时为0
+     */
+    public int getCorePoolSize() {
+        final ExecutorService exec = shared.get();
+        return exec instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) exec).getCorePoolSize() : 0;
+    }
+
+
+    /**
+     * 系统线程池的最大线程数. 不是 {@link ThreadPoolExecutor} 时为0
+     */
+    public int getMaximumPoolSize() {
+        final ExecutorService exec = shared.get();
+        return exec instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) exec).getMaximumPoolSize() : 0;
+    }
+
+
+    /**
+     * 等待的任务数: 系统线程池的等待任务数 + 自己线程池的等待任务数
+     */
+    public int getWaitingCount() {
+        final ExecutorService exec = shared.get();
+        int count = exec instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) exec).getQueue().size() : 0;
+        if (_overflow.done()) count += _overflow.get().getQueue().size();
+        return count;
+    }
+
+
+    /**
+     * 统计快照
+     * @return inflight: 在系统线程池中还没执行完的任务数, overflowed: 溢出的任务数, rejected: 拒绝的任务数, poolSize/waitingCount: 自己线程池的线程数/等待任务数
+     */
+    public Map<String, Object> stats() {
+        final Map<String, Object> data = new LinkedHashMap<>();
+        data.put("inflight", inflight.get());
+        data.put("overflowed", overflowed.sum());
+        data.put("rejected", rejected.sum());
+        if (_overflow.done()) {
+            data.put("poolSize", _overflow.get().getPoolSize());
+            data.put("waitingCount", _overflow.get().getQueue().size());
+        }
+        return data;
+    }
+
+
+    /**
+     * 不关闭系统线程池. 只关闭自己的线程池
+     */
+    @Override
+    public void shutdown() {
+        if (_overflow.done()) _overflow.get().shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown() { return shared.get().isShutdown(); }
+
+    @Override
+    public boolean isTerminated() { return shared.get().isTerminated(); }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return shared.get().awaitTermination(timeout, unit);
+    }
+
+
+    @Override
+    public String toString() {
+        return "Bulkhead{name: " + name + ", minShare: " + minShare + ", maxShare: " + maxShare + ", maxPoolSize: " + maxPoolSize + ", stats: " + stats() + "}";
+    }
+}
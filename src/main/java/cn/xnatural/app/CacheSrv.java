@@ -18,10 +18,7 @@ import java.util.function.Function;
  */
 public class CacheSrv extends ServerTpl {
     // 触发清理多余数据的条件
-    protected final Lazier<Integer> _limit = new Lazier(() -> {
-        queue(name).useLast(true);
-        return getInteger("itemLimit", 1000);
-    });
+    protected final Lazier<Integer> _limit = new Lazier(() -> getInteger("itemLimit", 1000));
 
     /**
      * 数据存放
@@ -302,7 +299,7 @@ public class CacheSrv extends ServerTpl {
                 if (removed != null) removed.close(oldestKey.get());
             }
         };
-        if (onlyCleanExpired) queue(clean); // 异步清除多余的缓存
+        if (onlyCleanExpired) queue(name).offer("clean", clean); // 异步清除多余的缓存. 按key合并: 排对中的清除任务只保留一个
         else clean.run(); // 同步清理: 避免异步排对太多而不能及时清理造成内存占用过多而溢出
     }
 
@@ -0,0 +1,115 @@
+package cn.xnatural.app;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按排对时长的准入控制(CoDel: Controlled Delay)
+ * 任务开始执行时记录其排对时长: 连续 interval 时长内排对时长都超过 target, 进入过载状态; 任意一个任务的排对时长低于 target 时退出
+ * 过载时拒绝优先级不高于 shedPriority 的新任务, 让排对时长保持在 target 附近, 而不是一直增长到对列容量
+ * 只看排对时长(不看对列长度): 任务快时长对列没问题, 任务慢时短对列也可能过载
+ * <pre>
+ * CoDel codel = new CoDel(Duration.ofMillis(50), Duration.ofMillis(500), LaneQueue.LOW);
+ * // 任务开始执行时
+ * codel.record(System.nanoTime() - enqueueTime);
+ * // 提交任务前
+ * if (!codel.admit(priority)) throw new RejectedExecutionException("overloaded");
+ * </pre>
+ */
+public class CoDel {
+    /**
+     * 目标排对时长(单位: ns)
+     */
+    protected final long target;
+    /**
+     * 观察时长(单位: ns): 排对时长持续超过 target 这么长时间才算过载
+     */
+    protected final long interval;
+    /**
+     * 优先级不高于此值的任务在过载时被拒绝 {@link LaneQueue}
+     */
+    protected final int shedPriority;
+    /**
+     * 排对时长开始超过 target 后, 认定为过载的时间点 {@link System#nanoTime()}. 0: 排对时长未超过 target
+     */
+    protected volatile long firstAboveTime;
+    /**
+     * 是否过载
+     */
+    protected volatile boolean overloaded;
+    /**
+     * 统计: 进入过载的次数, 拒绝的任务个数
+     */
+    protected final LongAdder overloads = new LongAdder(), shed = new LongAdder();
+
+
+    /**
+     * 创建准入控制
+     * @param target 目标排对时长
+     * @param interval 观察时长. 一般为 target 的 10 倍左右
+     * @param shedPriority 优先级不高于此值的任务在过载时被拒绝 {@link LaneQueue#LOW}, {@link LaneQueue#NORMAL}
+     */
+    public CoDel(Duration target, Duration interval, int shedPriority) {
+        if (target == null || target.toNanos() < 1) throw new IllegalArgumentException("Param target > 0");
+        if (interval == null || interval.toNanos() < 1) throw new IllegalArgumentException("Param interval > 0");
+        this.target = target.toNanos();
+        this.interval = interval.toNanos();
+        this.shedPriority = shedPriority;
+    }
+
+
+    /**
+     * 记录一个任务的排对时长(开始执行时)
+     * @param sojourn 排对时长(单位: ns)
+     */
+    public void record(long sojourn) {
+        if (sojourn < target) {
+            if (firstAboveTime != 0) firstAboveTime = 0;
+            if (overloaded) overloaded = false;
+            return;
+        }
+        final long now = System.nanoTime();
+        final long first = firstAboveTime;
+        if (first == 0) firstAboveTime = now + interval;
+        else if (!overloaded && now - first >= 0) {
+            overloaded = true;
+            overloads.increment();
+        }
+    }
+
+
+    /**
+     * 是否准入
+     * @param priority 任务优先级 {@link LaneQueue}
+     * @return false: 过载, 应拒绝此任务
+     */
+    public boolean admit(int priority) {
+        if (!overloaded || priority > shedPriority) return true;
+        shed.increment();
+        return false;
+    }
+
+
+    public boolean isOverloaded() { return overloaded; }
+
+
+    /**
+     * 统计快照
+     * @return overloaded: 是否过载, overloads: 进入过载的次数, shed: 拒绝的任务个数
+     */
+    public Map<String, Object> stats() {
+        final Map<String, Object> data = new LinkedHashMap<>();
+        data.put("overloaded", overloaded);
+        data.put("overloads", overloads.sum());
+        data.put("shed", shed.sum());
+        return data;
+    }
+
+
+    @Override
+    public String toString() {
+        return "CoDel{target: " + target / 1_000_000 + "ms, interval: " + interval / 1_000_000 + "ms, shedPriority: " + shedPriority + ", overloaded: " + overloaded + "}";
+    }
+}
@@ -0,0 +1,181 @@
+package cn.xnatural.app;
+
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 截止时间/取消标记(协作式)
+ * 调用方放弃等待后(超时或主动取消), 还在排对的任务开始前被丢弃, 正在执行的任务通过 {@link #current()} 看到取消标记后自行结束
+ * 过载时不再执行没人等待结果的任务: 排对的积压不会无限增长
+ * <pre>
+ * Deadline deadline = Deadline.after(Duration.ofSeconds(3));
+ * queue("report").offer(() -&gt; {
+ *     for (Item item : items) {
+ *         Deadline.checkpoint(); // 已取消或超时: 抛出 CancellationException
+ *         process(item);
+ *     }
+ * }, deadline);
+ * // 调用方不再需要结果
+ * deadline.cancel();
+ * </pre>
+ */
+public class Deadline {
+    /**
+     * 当前线程正在执行的任务的截止时间
+     */
+    protected static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+    /**
+     * 截止时间点 {@link System#nanoTime()}
+     */
+    protected final long at;
+    /**
+     * 是否已取消
+     */
+    protected volatile boolean cancelled;
+
+
+    protected Deadline(long at) { this.at = at; }
+
+
+    /**
+     * 从现在开始多长时间后截止
+     * @param timeout 时长
+     * @return {@link Deadline}
+     */
+    public static Deadline after(Duration timeout) {
+        if (timeout == null) throw new IllegalArgumentException("Param timeout required");
+        return new Deadline(System.nanoTime() + timeout.toNanos());
+    }
+
+
+    /**
+     * 没有截止时间, 只能取消 {@link #cancel()}
+     * @return {@link Deadline}
+     */
+    public static Deadline cancellable() { return new Deadline(Long.MAX_VALUE); }
+
+
+    /**
+     * 取消
+     */
+    public void cancel() { cancelled = true; }
+
+
+    public boolean isCancelled() { return cancelled; }
+
+
+    /**
+     * 是否已过截止时间
+     */
+    public boolean isExpired() { return at != Long.MAX_VALUE && at - System.nanoTime() <= 0; }
+
+
+    /**
+     * 是否已结束: 已取消或已过截止时间
+     */
+    public boolean isDone() { return cancelled || isExpired(); }
+
+
+    /**
+     * 剩余时长
+     * @param unit 时长单位
+     * @return 小于等于0: 已过截止时间; {@link Long#MAX_VALUE}: 没有截止时间
+     */
+    public long remaining(TimeUnit unit) {
+        if (at == Long.MAX_VALUE) return Long.MAX_VALUE;
+        return unit.convert(at - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+
+    /**
+     * 在此截止时间下执行函数: 执行期间 {@link #current()} 返回此对象
+     * @param fn 函数
+     */
+    public void run(Runnable fn) {
+        final Deadline prev = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            fn.run();
+        } finally {
+            if (prev == null) CURRENT.remove();
+            else CURRENT.set(prev);
+        }
+    }
+
+
+    /**
+     * 当前线程正在执行的任务的截止时间
+     * @return null: 没有
+     */
+    public static Deadline current() { return CURRENT.get(); }
+
+
+    /**
+     * 检查点: 当前任务已取消或已过截止时间, 则结束执行
+     * @throws CancellationException 已取消或已过截止时间
+     */
+    public static void checkpoint() {
+        final Deadline deadline = CURRENT.get();
+        if (deadline != null && deadline.isDone()) {
+            throw new CancellationException(deadline.cancelled ? "Cancelled" : "Deadline exceeded");
+        }
+    }
+
+
+    /**
+     * 绑定截止时间的任务: 开始执行前已结束的不执行
+     * 提交到系统线程池时被统计 {@link AppContext#execStats()}
+     * @param fn 任务函数
+     * @param priority 优先级 {@link LaneQueue}
+     * @param expiredFn 已结束不执行时的回调. 可为null
+     * @return {@link Bound}
+     */
+    public Bound bind(Runnable fn, int priority, Runnable expiredFn) {
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        return new Bound(fn, priority, expiredFn);
+    }
+
+
+    /**
+     * 绑定截止时间的任务
+     */
+    public class Bound implements Runnable, LaneQueue.Prioritized {
+        protected final Runnable fn;
+        protected final int priority;
+        protected final Runnable expiredFn;
+
+        protected Bound(Runnable fn, int priority, Runnable expiredFn) {
+            this.fn = fn;
+            this.priority = priority;
+            this.expiredFn = expiredFn;
+        }
+
+        /**
+         * 执行任务
+         * @return false: 已结束, 没有执行
+         */
+        public boolean runIfLive() {
+            if (isDone()) {
+                if (expiredFn != null) expiredFn.run();
+                return false;
+            }
+            Deadline.this.run(fn);
+            return true;
+        }
+
+        @Override
+        public void run() { runIfLive(); }
+
+        @Override
+        public int priority() { return priority; }
+
+        public Deadline deadline() { return Deadline.this; }
+    }
+
+
+    @Override
+    public String toString() {
+        return "Deadline{cancelled: " + cancelled + ", remaining: " + (at == Long.MAX_VALUE ? "unlimited" : remaining(TimeUnit.MILLISECONDS) + "ms") + "}";
+    }
+}
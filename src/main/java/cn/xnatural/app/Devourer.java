@@ -4,10 +4,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Duration;
-import java.util.Arrays;
-import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiConsumer;
 import java.util.function.Predicate;
 
@@ -38,9 +42,35 @@ public class Devourer {
      */
     protected final LatchLock lock = new LatchLock();
     /**
-     * 任务执行对列
+     * 自适应并发限制 {@link #adaptive(int, int)}
      */
-    protected final Deque<Runnable> waiting = new ConcurrentLinkedDeque<>();
+    protected AdaptiveLimiter adaptiveLimiter;
+    /**
+     * 任务执行对列: 按优先级分通道 {@link #offer(Runnable, int)}, 同一优先级按顺序
+     * NOTE: 只能通过 {@link #enqueue(Runnable, int)}, {@link #poll()}, {@link #addFirst(Task)}, {@link #clearWaiting()} 操作, 以保证 {@link #waitingCount} 准确
+     */
+    protected final LaneQueue<Task> waiting = new LaneQueue<>();
+    /**
+     * 排对个数. 入对时按容量占位
+     */
+    protected final AtomicInteger waitingCount = new AtomicInteger();
+    /**
+     * 对列容量 {@link #capacity(int, Overflow)}
+     */
+    protected int capacity = Integer.MAX_VALUE;
+    /**
+     * 对列满时的处理策略
+     */
+    protected Overflow overflow = Overflow.REJECT;
+    /**
+     * {@link Overflow#BLOCK} 最多等待时长(单位: ms)
+     */
+    protected long blockTimeout;
+    /**
+     * 对列满时, 等待入对的线程个数 {@link Overflow#BLOCK}
+     */
+    protected volatile int blocked;
+    protected final Object notFull = new Object();
     /**
      * 错误处理函数
      */
@@ -54,10 +84,77 @@ public class Devourer {
      */
     protected boolean useLast;
     /**
-     * 速度限制
-     * 平均每个占用执行时间
+     * 速度限制器 {@link #speed(String, int)}
+     */
+    protected SpeedLimiter speedLimiter;
+    /**
+     * 一次提交最多连续执行任务个数 {@link #drain(int, Duration)}
+     */
+    protected int drainMax = 1;
+    /**
+     * 一次提交最多连续执行时长(单位: ns)
+     */
+    protected long drainTime;
+    /**
+     * 是否已有一个延迟触发在等待 {@link #delayTrigger(long)}
+     */
+    protected final AtomicBoolean delayed = new AtomicBoolean(false);
+    /**
+     * 失败重试退避基准时长(单位: ns) {@link #retryBackoff(Duration, Duration)}
+     */
+    protected long retryBase = TimeUnit.MILLISECONDS.toNanos(50);
+    /**
+     * 失败重试退避最大时长(单位: ns)
+     */
+    protected long retryMax = TimeUnit.SECONDS.toNanos(10);
+    /**
+     * 连续失败次数
+     */
+    protected final AtomicInteger failures = new AtomicInteger();
+    /**
+     * 退避结束时间点 {@link System#nanoTime()}
+     */
+    protected volatile long retryAt;
+    /**
+     * 延迟入对还没到期的任务 {@link #offer(Runnable, Duration)}
+     */
+    protected final Set<WheelTimer.Timeout> delayedTasks = ConcurrentHashMap.newKeySet();
+    /**
+     * 按key合并的排对中的任务 {@link #offer(Object, Runnable)}
+     */
+    protected final Map<Object, Coalesced> coalescing = new ConcurrentHashMap<>();
+    /**
+     * 统计: 被合并(替换)的任务个数
+     */
+    protected final LongAdder coalesced = new LongAdder();
+    /**
+     * 最后使用时间点 {@link System#nanoTime()}: 入对, 执行完
+     */
+    protected volatile long lastUsed = System.nanoTime();
+    /**
+     * 正在入对的个数 {@link AppContext#queue(String, Runnable)}. 大于0时不是空闲 {@link #isIdle(long)}
+     */
+    protected final AtomicInteger offering = new AtomicInteger();
+    /**
+     * 统计: 排对等待时长(入对到开始执行, 单位: ns)
+     */
+    protected final Histogram waitTime = new Histogram();
+    /**
+     * 统计: 执行时长(单位: ns)
      */
-    protected Long perSpend;
+    protected final Histogram runTime = new Histogram();
+    /**
+     * 统计: 执行成功, 执行失败, 失败重试, 丢弃(对列满/useLast/关闭), 拒绝(对列满), 过期(开始前已过截止时间或已取消) 个数
+     */
+    protected final LongAdder completed = new LongAdder(), failed = new LongAdder(), retried = new LongAdder(), dropped = new LongAdder(), rejected = new LongAdder(), expired = new LongAdder();
+    /**
+     * 上次统计快照的时间点和执行成功个数, 用于计算吞吐量 {@link #stats()}
+     */
+    protected long lastStatsTime = System.nanoTime(), lastCompleted;
+    /**
+     * 定时器: 延迟触发, 暂停到期恢复, 延迟任务, 失败重试退避. 只做调度, 不执行任务, 不占用线程池的线程
+     */
+    protected static final Lazier<WheelTimer> timer = new Lazier<>(() -> new WheelTimer("devourer-timer", Duration.ofMillis(1), 1024));
 
 
     /**
@@ -107,13 +204,368 @@ public class Devourer {
      */
     public Devourer offer(Runnable fn) {
         if (fn == null) return this;
-        if (useLast) waiting.clear();
-        waiting.offer(fn);
-        trigger();
+        lastUsed = System.nanoTime();
+        if (useLast) clearWaiting();
+        if (enqueue(fn)) trigger();
+        return this;
+    }
+
+
+    /**
+     * 有结果的任务入对列
+     * 返回的 {@link CompletableFuture} 在执行任务的线程中完成, 所以依赖它的非Async阶段(thenApply, thenAccept...)直接在该线程中执行, 不再切换线程
+     * 任务被丢弃(对列满, useLast, 关闭)时 future 被取消; 失败重试时以最后一次执行结果完成
+     * @param fn 任务函数
+     * @return {@link CompletableFuture}
+     * @throws RejectedExecutionException 对列满 {@link Overflow#REJECT}, {@link Overflow#BLOCK}
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> fn) { return submit(fn, null); }
+
+
+    /**
+     * 有截止时间的有结果的任务入对列 {@link #submit(Callable)}
+     * 开始执行前已过截止时间或已取消: 不执行, future 被取消
+     * @param fn 任务函数
+     * @param deadline 截止时间. 可为null
+     * @return {@link CompletableFuture}
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> fn, Deadline deadline) {
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        final Call<T> call = new Call<>(fn);
+        try {
+            offer(call, deadline);
+        } catch (RuntimeException ex) {
+            if (!call.future.isDone()) throw ex; // 已完成: 是 CALLER_RUNS 执行失败, 结果已在 future 中
+        }
+        return call.future;
+    }
+
+
+    /**
+     * 有截止时间的任务入对列
+     * 开始执行前已过截止时间或已取消的任务不执行(统计为 expired); 执行中可通过 {@link Deadline#current()}, {@link Deadline#checkpoint()} 看到取消标记
+     * @param fn 任务函数
+     * @param deadline 截止时间. null: 没有截止时间
+     * @return {@link Devourer}
+     */
+    public Devourer offer(Runnable fn, Deadline deadline) {
+        if (fn == null) return this;
+        lastUsed = System.nanoTime();
+        if (useLast) clearWaiting();
+        if (enqueue(fn, LaneQueue.NORMAL, deadline)) trigger();
         return this;
     }
 
 
+    /**
+     * 有结果的任务 {@link #submit(Callable)}
+     */
+    protected class Call<T> implements Runnable {
+        protected final Callable<T> fn;
+        protected final CompletableFuture<T> future = new CompletableFuture<>();
+
+        protected Call(Callable<T> fn) { this.fn = fn; }
+
+        @Override
+        public void run() {
+            if (future.isDone()) return;
+            try {
+                future.complete(fn.call());
+            } catch (Throwable ex) {
+                if (failMaxKeep == null || failMaxKeep <= 0) future.completeExceptionally(ex); // 不会重试
+                if (ex instanceof RuntimeException) throw (RuntimeException) ex;
+                if (ex instanceof Error) throw (Error) ex;
+                throw new CompletionException(ex);
+            }
+        }
+    }
+
+
+    /**
+     * 按优先级入对列
+     * 优先执行高优先级的任务, 同一优先级按入对顺序. 低优先级的任务等待越久优先级越高(老化 {@link #aging(Duration)}), 不会一直等待
+     * 例: 健康检查, 用户请求 用 {@link LaneQueue#HIGH}; 后台重算 用 {@link LaneQueue#LOW}
+     * @param fn 任务函数
+     * @param priority 优先级 {@link LaneQueue#LOW}, {@link LaneQueue#NORMAL}(默认), {@link LaneQueue#HIGH}
+     * @return {@link Devourer}
+     */
+    public Devourer offer(Runnable fn, int priority) {
+        if (fn == null) return this;
+        lastUsed = System.nanoTime();
+        if (useLast) clearWaiting();
+        if (enqueue(fn, priority)) trigger();
+        return this;
+    }
+
+
+    /**
+     * 设置优先级老化时长: 排对的任务每等待这么长时间优先级提升一级 {@link #offer(Runnable, int)}
+     * @param agingTime 老化时长. 0: 严格按优先级(低优先级的任务可能一直等待). 默认1秒
+     * @return {@link Devourer}
+     */
+    public Devourer aging(Duration agingTime) {
+        waiting.aging(agingTime);
+        return this;
+    }
+
+
+    /**
+     * 按key合并入对列
+     * 同一个key只保留最新的一个等待中的任务: key已有任务在排对时, 只替换其任务函数(O(1)), 不重新排对
+     * 适合: 同一对列中有很多实体的更新(价格变动, 状态刷新), 只需要执行每个实体最新的一次
+     * NOTE: 任务开始执行后, 同一个key的新任务重新排对
+     * @param key 合并的key
+     * @param fn 任务函数
+     * @return {@link Devourer}
+     */
+    public Devourer offer(Object key, Runnable fn) {
+        if (key == null) return offer(fn);
+        if (fn == null) return this;
+        lastUsed = System.nanoTime();
+        final Coalesced[] created = {null};
+        coalescing.compute(key, (k, c) -> {
+            if (c == null) created[0] = c = new Coalesced(k);
+            else coalesced.increment();
+            c.fn = fn;
+            return c;
+        });
+        if (created[0] == null) return this; // 已在排对, 已替换为最新的任务函数
+        if (useLast) clearWaiting();
+        final boolean enqueued;
+        try {
+            enqueued = enqueue(created[0]);
+        } catch (RuntimeException ex) { // 对列满被拒绝: 移除, 否则这个key以后的任务都被当作已在排对
+            coalescing.remove(key, created[0]);
+            throw ex;
+        }
+        if (enqueued) trigger();
+        else coalescing.remove(key, created[0]);
+        return this;
+    }
+
+
+    /**
+     * 按key合并的任务 {@link #offer(Object, Runnable)}
+     */
+    protected class Coalesced implements Runnable {
+        protected final Object key;
+        /**
+         * 最新的任务函数
+         */
+        protected volatile Runnable fn;
+        /**
+         * 开始执行时取出的任务函数. 失败重试时执行同一个
+         */
+        protected Runnable taken;
+
+        protected Coalesced(Object key) { this.key = key; }
+
+        @Override
+        public void run() {
+            if (taken == null) {
+                // 取出任务函数的同时移除, 之后同一个key的新任务重新排对
+                coalescing.computeIfPresent(key, (k, c) -> {
+                    if (c != this) return c;
+                    taken = fn;
+                    return null;
+                });
+                if (taken == null) taken = fn;
+            }
+            taken.run();
+        }
+    }
+
+
+    /**
+     * 任务延迟一段时间后入对列
+     * 延迟期间不占用线程
+     * @param fn 任务函数
+     * @param delay 延迟时长
+     * @return {@link Devourer}
+     */
+    public Devourer offer(Runnable fn, Duration delay) {
+        if (fn == null) return this;
+        if (delay == null || delay.isNegative()) throw new IllegalArgumentException("Param delay >= 0");
+        // 定时器可能在 schedule 返回前就到期执行: 这时 holder 还是空的, 由下边的 isExpired 移除
+        final AtomicReference<WheelTimer.Timeout> holder = new AtomicReference<>();
+        // 入对可能阻塞或者直接执行的, 不能在定时器线程中: 到期后交给线程池入对
+        final WheelTimer.Timeout timeout = timer.get().schedule(() -> {
+            final WheelTimer.Timeout t = holder.get();
+            if (t != null) delayedTasks.remove(t);
+            offer(fn);
+        }, delay.toNanos(), TimeUnit.NANOSECONDS, exec);
+        holder.set(timeout);
+        delayedTasks.add(timeout);
+        if (timeout.isExpired()) delayedTasks.remove(timeout);
+        return this;
+    }
+
+
+    /**
+     * 任务加入对列尾
+     * @param fn 任务函数
+     * @return true: 已入对; false: 没有入对(被丢弃或已被当前线程执行)
+     */
+    protected boolean enqueue(Runnable fn) { return enqueue(fn, LaneQueue.NORMAL); }
+
+
+    /**
+     * 任务加入对应优先级通道的尾
+     * 对列满时按 {@link #overflow} 策略处理. {@link Overflow#DROP_OLDEST} 丢弃最低优先级中最老的
+     * @param fn 任务函数
+     * @param priority 优先级
+     * @return true: 已入对; false: 没有入对(被丢弃或已被当前线程执行)
+     */
+    protected boolean enqueue(Runnable fn, int priority) { return enqueue(fn, priority, null); }
+
+
+    /**
+     * 任务加入对应优先级通道的尾
+     * 对列满时按 {@link #overflow} 策略处理. {@link Overflow#DROP_OLDEST} 丢弃最低优先级中最老的
+     * @param fn 任务函数
+     * @param priority 优先级
+     * @param deadline 截止时间. 可为null
+     * @return true: 已入对; false: 没有入对(被丢弃或已被当前线程执行)
+     */
+    protected boolean enqueue(Runnable fn, int priority, Deadline deadline) {
+        for (;;) {
+            int count = waitingCount.get();
+            if (count >= capacity) {
+                switch (overflow) {
+                    case DROP_NEWEST:
+                        drop(fn);
+                        log.warn("{} is full({}), drop newest task", key, capacity);
+                        return false;
+                    case DROP_OLDEST:
+                        final Task oldest = taken(waiting.pollLowest());
+                        if (oldest != null) {
+                            drop(oldest.fn);
+                            log.warn("{} is full({}), drop oldest task", key, capacity);
+                            continue;
+                        }
+                        // 没有可丢弃的(已被并发取走, 或者其它线程已占位还没放入): 有空位了重试, 否则丢弃新任务, 不空转
+                        if (waitingCount.get() < capacity) continue;
+                        drop(fn);
+                        log.warn("{} is full({}), nothing to drop, drop newest task", key, capacity);
+                        return false;
+                    case CALLER_RUNS:
+                        fn.run();
+                        return false;
+                    case BLOCK:
+                        if (awaitNotFull()) continue;
+                        rejected.increment();
+                        throw new RejectedExecutionException(key + " is full(" + capacity + "), wait timeout " + blockTimeout + "ms");
+                    default:
+                        rejected.increment();
+                        throw new RejectedExecutionException(key + " is full(" + capacity + ")");
+                }
+            }
+            if (waitingCount.compareAndSet(count, count + 1)) break;
+        }
+        waiting.offer(new Task(fn, priority, deadline), priority);
+        return true;
+    }
+
+
+    /**
+     * 任务被丢弃: 对列满, useLast, 关闭
+     * @param fn 被丢弃的任务函数
+     */
+    protected void drop(Runnable fn) {
+        dropped.increment();
+        discard(fn);
+    }
+
+
+    /**
+     * 任务过期: 开始执行前已过截止时间或已取消 {@link Deadline}
+     * @param fn 过期的任务函数
+     */
+    protected void expire(Runnable fn) {
+        expired.increment();
+        discard(fn);
+    }
+
+
+    /**
+     * 任务不执行了(被丢弃或过期). {@link #submit(Callable)} 的 future 被取消
+     * @param fn 任务函数
+     */
+    protected void discard(Runnable fn) {
+        if (fn instanceof Devourer.Coalesced) coalescing.remove(((Coalesced) fn).key, fn);
+        else if (fn instanceof Devourer.Call) ((Call<?>) fn).future.cancel(false);
+    }
+
+
+    /**
+     * 等待对列不满
+     * @return false: 等待超时
+     */
+    protected boolean awaitNotFull() {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+        synchronized (notFull) {
+            blocked++;
+            try {
+                while (waitingCount.get() >= capacity) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) return false;
+                    notFull.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                blocked--;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * 从对列头取出一个任务
+     * @return null: 对列为空
+     */
+    protected Task poll() { return taken(waiting.poll()); }
+
+
+    /**
+     * 任务已从对列中取出
+     */
+    protected Task taken(Task task) {
+        if (task == null) return null;
+        waitingCount.decrementAndGet();
+        if (blocked > 0) {
+            synchronized (notFull) { notFull.notifyAll(); }
+        }
+        return task;
+    }
+
+
+    /**
+     * 任务重新加入对列头(失败重试). 不受容量限制
+     * @param task 任务
+     */
+    protected void addFirst(Task task) {
+        waitingCount.incrementAndGet();
+        waiting.addFirst(task, task.priority);
+    }
+
+
+    /**
+     * 清空对列
+     * @return 清除的个数
+     */
+    protected int clearWaiting() {
+        int count = 0;
+        for (Task task = poll(); task != null; task = poll()) {
+            drop(task.fn);
+            count++;
+        }
+        return count;
+    }
+
+
     /**
      * 不断的从 {@link #waiting} 对列中取出执行
      */
@@ -124,41 +576,33 @@ public class Devourer {
             else this.pauseCondition = null;
         }
         if (waiting.isEmpty()) return;
+        if (isBackoff()) return; // 失败重试退避中, 到时间后由定时器触发
+        if (!ready()) return;
         // 1.必须保证正在执行的函数不超过 parallelLimit
         // 2.必须保证这里waiting对列中不为空
         // 3.必须保证不能出现情况: waiting 对列中有值, 但没有被执行
         if (!lock.tryLock()) return;
+        // 速度限制: 没有许可时, 不占用线程等待, 而是到时间后再触发
+        final SpeedLimiter limiter = this.speedLimiter;
+        if (limiter != null) {
+            long wait = limiter.tryAcquire();
+            if (wait > 0) {
+                lock.release();
+                delayTrigger(wait);
+                return;
+            }
+        }
         exec.execute(() -> {
-            final long start = perSpend == null ? 0 : System.currentTimeMillis(); // 执行开始时间, 用于计算执行花费时长
-            Runnable task = null;
+            final long start = drainMax > 1 ? System.nanoTime() : 0;
+            int count = 0;
             try {
-                task = waiting.poll();
-                if (task != null) task.run(); // 5个并发添加5个任务, 锁限制3, 第一次执行完3个任务, 第2次再同时获取3个锁, 但任务只有2个, 所以有可能poll出来为空
-            } catch (Throwable ex) {
-                // 不用担心顺序, 因为如果并发为1, 一定是顺序的; 如果并发大于1, 执行顺序就不一定顺序了
-                if (task != null && failMaxKeep != null && failMaxKeep > 0 && (getWaitingCount() < failMaxKeep)) waiting.addFirst(task);
-                if (errorHandler != null) {
-                    try {
-                        errorHandler.accept(ex, this);
-                    } catch (Throwable exx) {
-                        log.error(key + " errorHandler error", exx);
-                    }
-                } else {
-                    log.error(key, ex);
-                }
+                // 连续执行: 一次提交最多执行 drainMax 个任务或者 drainTime 时长, 减少线程池提交次数
+                do {
+                    Task task = poll(); // 5个并发添加5个任务, 锁限制3, 第一次执行完3个任务, 第2次再同时获取3个锁, 但任务只有2个, 所以有可能poll出来为空
+                    if (task == null || !run(task)) break;
+                } while (++count < drainMax && System.nanoTime() - start < drainTime && canContinue());
             } finally {
-                // 速度限制
-                if (perSpend != null && perSpend > 0) {
-                    // 剩余时长 = 应该花费时长 - 已花费时长
-                    long left = perSpend - (System.currentTimeMillis() - start);
-                    if (left > 1) {
-                        try {
-                            Thread.sleep(left - 1);
-                        } catch (InterruptedException e) {
-                            log.error(key + " speed sleep error", e);
-                        }
-                    }
-                }
+                lastUsed = System.nanoTime();
                 lock.release();
                 if (!waiting.isEmpty()) trigger(); // 持续不断执行对列中的任务
             }
@@ -166,6 +610,150 @@ public class Devourer {
     }
 
 
+    /**
+     * 执行一个任务
+     * @param task 任务
+     * @return false: 执行失败
+     */
+    protected boolean run(Task task) {
+        final Deadline deadline = task.deadline;
+        if (deadline != null && deadline.isDone()) { // 调用方已不需要结果, 不执行
+            expire(task.fn);
+            return true;
+        }
+        final AdaptiveLimiter adaptive = this.adaptiveLimiter;
+        final long start = System.nanoTime();
+        final long wait = start - task.enqueueTime;
+        waitTime.record(wait);
+        try {
+            if (deadline == null) task.fn.run();
+            else deadline.run(task.fn);
+            final long rtt = System.nanoTime() - start;
+            runTime.record(rtt);
+            completed.increment();
+            if (adaptive != null) adaptive.onSuccess(rtt, wait, !waiting.isEmpty());
+            if (failures.get() > 0) failures.set(0);
+            return true;
+        } catch (Throwable ex) {
+            runTime.record(System.nanoTime() - start);
+            if (ex instanceof CancellationException && deadline != null && deadline.isDone()) { // 执行中看到取消标记自行结束, 不算失败
+                expired.increment();
+                if (task.fn instanceof Devourer.Call) ((Call<?>) task.fn).future.cancel(false);
+                return true;
+            }
+            failed.increment();
+            if (adaptive != null) adaptive.onFailure();
+            // 不用担心顺序, 因为如果并发为1, 一定是顺序的; 如果并发大于1, 执行顺序就不一定顺序了
+            if (failMaxKeep != null && failMaxKeep > 0 && (getWaitingCount() < failMaxKeep)) {
+                retried.increment();
+                addFirst(task);
+                backoff();
+            } else if (task.fn instanceof Devourer.Call) { // 不再重试
+                final Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                ((Call<?>) task.fn).future.completeExceptionally(cause);
+            }
+            if (errorHandler != null) {
+                try {
+                    errorHandler.accept(ex, this);
+                } catch (Throwable exx) {
+                    log.error(key + " errorHandler error", exx);
+                }
+            } else {
+                log.error(key, ex);
+            }
+            return false;
+        }
+    }
+
+
+    /**
+     * 对列中的任务
+     */
+    protected static class Task {
+        protected final Runnable fn;
+        /**
+         * 优先级 {@link LaneQueue}
+         */
+        protected final int priority;
+        /**
+         * 截止时间. 可为null
+         */
+        protected final Deadline deadline;
+        /**
+         * 入对时间点 {@link System#nanoTime()}. 失败重试时不变
+         */
+        protected final long enqueueTime = System.nanoTime();
+
+        protected Task(Runnable fn, int priority, Deadline deadline) {
+            this.fn = fn;
+            this.priority = priority;
+            this.deadline = deadline;
+        }
+    }
+
+
+    /**
+     * 失败重试退避: 对列暂停 指数增长的时长(加随机抖动), 到时间后由定时器触发继续执行
+     * 对列整体暂停(而不是只延迟失败的任务), 以保证并发为1时的执行顺序
+     */
+    protected void backoff() {
+        final long base = retryBase;
+        if (base <= 0) return;
+        final int n = failures.incrementAndGet();
+        long delay = base;
+        for (int i = 1; i < n && delay < retryMax; i++) delay <<= 1;
+        delay = Math.min(delay, retryMax);
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1); // 抖动: 避免多个对列同时重试
+        retryAt = System.nanoTime() + delay;
+        timer.get().schedule(this::trigger, delay, TimeUnit.NANOSECONDS, exec);
+    }
+
+
+    /**
+     * 是否可以开始执行下一个任务. 子类扩展执行条件
+     * NOTE: 返回false后, 子类在条件满足时需调用 {@link #trigger()}
+     */
+    protected boolean ready() { return true; }
+
+
+    /**
+     * 是否在失败重试退避中
+     */
+    protected boolean isBackoff() { return failures.get() > 0 && retryAt - System.nanoTime() > 0; }
+
+
+    /**
+     * 连续执行时, 是否可以继续执行下一个任务
+     * @return true: 未暂停, 对列不为空, 并且有速度许可
+     */
+    protected boolean canContinue() {
+        if (waiting.isEmpty()) return false;
+        Predicate<Devourer> condition = this.pauseCondition;
+        if (condition != null && condition.test(this)) return false;
+        if (isBackoff()) return false;
+        if (!ready()) return false;
+        final SpeedLimiter limiter = this.speedLimiter;
+        return limiter == null || limiter.tryAcquire() == 0;
+    }
+
+
+    /**
+     * 设置连续执行
+     * 拿到执行许可的线程, 连续从对列中取任务执行, 直到执行了 maxTasks 个任务或者超过 maxTime 时长才把线程还给线程池
+     * 适合: 大量的执行很快的小任务. 限制个数和时长是为了不长期占用线程, 保证和其它对列公平
+     * @param maxTasks 一次最多连续执行个数 >=1. 1: 每个任务都重新提交到线程池(默认)
+     * @param maxTime 一次最多连续执行时长
+     * @return {@link Devourer}
+     */
+    public Devourer drain(int maxTasks, Duration maxTime) {
+        if (maxTasks < 1) throw new IllegalArgumentException("Param maxTasks >= 1");
+        if (maxTime == null || maxTime.isNegative()) throw new IllegalArgumentException("Param maxTime >= 0");
+        this.drainMax = maxTasks;
+        this.drainTime = maxTime.toNanos();
+        return this;
+    }
+
+
     /**
      * 设置并发数
      * @param parallel >=1
@@ -173,47 +761,193 @@ public class Devourer {
      */
     public Devourer parallel(int parallel) {
         if (parallel < 1) throw new IllegalArgumentException("Param parallel >= 1");
+        adaptiveLimiter = null;
         lock.limit(parallel);
         return this;
     }
 
 
+    /**
+     * 设置自适应并发数
+     * 根据任务执行时长在 min 和 max 之间自动调整并发数: 下游变慢时减小并发, 恢复后再慢慢增大
+     * 使用 {@link #parallel(int)} 恢复固定并发
+     * @param min 最小并发 >=1
+     * @param max 最大并发 >=min
+     * @return {@link Devourer}
+     */
+    public Devourer adaptive(int min, int max) {
+        adaptiveLimiter = new AdaptiveLimiter(lock, min, max);
+        return this;
+    }
+
+
+    /**
+     * 设置自适应并发数
+     * @param min 最小并发 >=1
+     * @param max 最大并发 >=min
+     * @param tolerance 执行时长超过 基准执行时长*tolerance 时减小并发. >1 (默认: 2.0)
+     * @param backoff 减小并发时乘以的系数. (0, 1) (默认: 0.9)
+     * @return {@link Devourer}
+     */
+    public Devourer adaptive(int min, int max, double tolerance, double backoff) {
+        adaptiveLimiter = new AdaptiveLimiter(lock, min, max).tolerance(tolerance).backoff(backoff);
+        return this;
+    }
+
+
+    /**
+     * 当前并发限制
+     */
+    public int getLimit() { return lock.getLimit(); }
+
+
+    /**
+     * 延迟一段时间后再触发执行
+     * 同一时间最多只有一个延迟触发在等待
+     * @param nanos 延迟时长(单位: ns)
+     */
+    protected void delayTrigger(long nanos) {
+        if (!delayed.compareAndSet(false, true)) return;
+        timer.get().schedule(() -> {
+            delayed.set(false);
+            trigger();
+        }, nanos, TimeUnit.NANOSECONDS, exec);
+    }
+
+
     /**
      * 速度限制
-     * 线程会按一定频率sleep
+     * 任务按速度均匀分布在时间线上执行. 没有许可时不会占用线程等待
+     * @param speed /s, /m, /h, /d; null: 不阻速
+     * @return {@link Devourer}
+     */
+    public Devourer speed(String speed) { return speed(speed, 1); }
+
+
+    /**
+     * 速度限制(允许突发)
+     * 平均速度不超过 speed, 空闲后最多可连续执行 burst 个任务
+     * 例: speed("100/s", 20)
      * @param speed /s, /m, /h, /d; null: 不阻速
+     * @param burst 允许突发的个数 >=1
      * @return {@link Devourer}
      */
-    public Devourer speed(String speed) {
+    public Devourer speed(String speed, int burst) {
         if (speed == null) {
-            perSpend = null;
+            speedLimiter = null;
             return this;
         }
-        String[] arr = speed.split("/");
-        // 速度大小
-        final int limit = Integer.valueOf(arr[0].trim());
-        if (limit < 1) throw new IllegalArgumentException("speed must > 0");
-        // 速度单位
-        final String unit = arr[1].trim().toLowerCase();
-        if (!Arrays.asList("s", "m", "h", "d").contains(unit)) {
-            throw new IllegalArgumentException("speed format 10/s, 10/m, 10/h, 10/d");
-        }
-        // 单位时间长
-        long unitDuration = 0;
-        if ("s".equals(unit)) unitDuration = 1000;
-        else if ("m".equals(unit)) unitDuration = 1000 * 60;
-        else if ("h".equals(unit)) unitDuration = 1000 * 60 * 60;
-        else if ("d".equals(unit)) unitDuration = 1000 * 60 * 60 * 24;
-        perSpend = unitDuration / limit;
+        speedLimiter = SpeedLimiter.of(speed, burst);
+        return this;
+    }
+
+
+    /**
+     * 设置对列容量
+     * @param capacity 最多排对个数 >=1
+     * @param overflow 对列满时的处理策略
+     * @return {@link Devourer}
+     */
+    public Devourer capacity(int capacity, Overflow overflow) {
+        if (capacity < 1) throw new IllegalArgumentException("Param capacity >= 1");
+        if (overflow == null) throw new IllegalArgumentException("Param overflow required");
+        if (overflow == Overflow.BLOCK && blockTimeout < 1) throw new IllegalArgumentException("Overflow.BLOCK use capacity(int, Duration)");
+        this.capacity = capacity;
+        this.overflow = overflow;
         return this;
     }
 
 
+    /**
+     * 设置对列容量, 对列满时入对线程等待
+     * @param capacity 最多排对个数 >=1
+     * @param blockTimeout 最多等待时长, 超时抛出 {@link RejectedExecutionException}
+     * @return {@link Devourer}
+     */
+    public Devourer capacity(int capacity, Duration blockTimeout) {
+        if (blockTimeout == null || blockTimeout.toMillis() < 1) throw new IllegalArgumentException("Param blockTimeout >= 1ms");
+        this.blockTimeout = blockTimeout.toMillis();
+        return capacity(capacity, Overflow.BLOCK);
+    }
+
+
+    /**
+     * 对列满时的处理策略
+     */
+    public enum Overflow {
+        /**
+         * 拒绝: 抛出 {@link RejectedExecutionException}
+         */
+        REJECT,
+        /**
+         * 丢弃对列头最老的任务, 新任务入对
+         */
+        DROP_OLDEST,
+        /**
+         * 丢弃新任务
+         */
+        DROP_NEWEST,
+        /**
+         * 入对线程等待一段时间, 超时抛出 {@link RejectedExecutionException}
+         */
+        BLOCK,
+        /**
+         * 由入对线程直接执行(不受并发限制)
+         */
+        CALLER_RUNS
+    }
+
+
     /**
      * 排对个数
      * @return 排对个数
      */
-    public int getWaitingCount() { return waiting.size(); }
+    public int getWaitingCount() { return waitingCount.get(); }
+
+
+    /**
+     * 延迟入对还没到期的任务个数 {@link #offer(Runnable, Duration)}
+     */
+    public int getDelayedCount() { return delayedTasks.size(); }
+
+
+    /**
+     * 是否空闲: 没有正在入对, 排对, 延迟, 执行中的任务, 并且超过 idleTimeout 时长没有使用
+     * @param idleTimeout 空闲时长(单位: ns)
+     */
+    public boolean isIdle(long idleTimeout) {
+        return offering.get() < 1 && waitingCount.get() < 1 && lock.getLatchSize() < 1 && delayedTasks.isEmpty()
+                && System.nanoTime() - lastUsed > idleTimeout;
+    }
+
+
+    /**
+     * 统计快照
+     * 时长单位: ms; tps: 距上次快照的每秒执行成功个数
+     * @return 统计数据
+     */
+    public Map<String, Object> stats() {
+        final Map<String, Object> data = new LinkedHashMap<>();
+        data.put("parallel", getParallel());
+        data.put("limit", getLimit());
+        data.put("waitingCount", getWaitingCount());
+        data.put("suspended", isSuspended());
+        final long done = completed.sum(), now = System.nanoTime();
+        synchronized (waitTime) {
+            data.put("tps", Math.round((done - lastCompleted) * 1e9 / Math.max(1, now - lastStatsTime) * 100) / 100.0);
+            lastCompleted = done; lastStatsTime = now;
+        }
+        data.put("completed", done);
+        data.put("failed", failed.sum());
+        data.put("retried", retried.sum());
+        data.put("dropped", dropped.sum());
+        data.put("rejected", rejected.sum());
+        data.put("expired", expired.sum());
+        data.put("coalesced", coalesced.sum());
+        data.put("waitTime", waitTime.snapshot(1e-6));
+        data.put("runTime", runTime.snapshot(1e-6));
+        return data;
+    }
 
 
     /**
@@ -230,28 +964,60 @@ public class Devourer {
     /**
      * 执行失败时, 保留最大个数
      * NOTE: 失败的任务会不断的重试执行, 直到成功或者对列中的个数大于此值被删除
+     * 重试按 {@link #retryBackoff(Duration, Duration)} 退避
      * 典型应用: 数据上报场景
      * @return {@link Devourer}
      */
     public Devourer failMaxKeep(Integer maxKeep) { this.failMaxKeep = maxKeep; return this; }
 
 
+    /**
+     * 设置失败重试退避时长
+     * 连续失败第n次后, 对列暂停 min(base * 2^(n-1), max) 的 50%~100%(随机抖动) 时长再重试, 成功后重新计算
+     * 默认: 50ms ~ 10s
+     * @param base 基准时长. 0: 不退避, 立即重试
+     * @param max 最大时长
+     * @return {@link Devourer}
+     */
+    public Devourer retryBackoff(Duration base, Duration max) {
+        if (base == null || base.isNegative()) throw new IllegalArgumentException("Param base >= 0");
+        if (max == null || max.compareTo(base) < 0) throw new IllegalArgumentException("Param max >= base");
+        this.retryBase = base.toNanos();
+        this.retryMax = max.toNanos();
+        return this;
+    }
+
+
     /**
      * 暂停一段时间
-     * NOTE 继续执行条件: 必须有新的任务入对, 或者手动调用 {@link #resume()}
+     * 到时间后由定时器触发自动恢复执行, 也可手动调用 {@link #resume()} 提前恢复
      * @param duration 一段时间
      * @return {@link Devourer}
      */
     public Devourer suspend(Duration duration) {
-        pauseCondition = new Predicate<Devourer>() {
-            final Pause pause = new Pause(duration);
-            @Override
-            public boolean test(Devourer devourer) { return !pause.isTimeout(); }
-        };
+        final Pause pause = new Pause(duration);
+        final Predicate<Devourer> condition = devourer -> !pause.isTimeout();
+        pauseCondition = condition;
+        resumeLater(condition, pause);
         return this;
     }
 
 
+    /**
+     * 暂停时间到后触发恢复执行
+     * 定时器按 tick 取整, 有可能在暂停时间到之前触发: 这时按剩余时长重新定时
+     * @param condition 暂停条件. 已被替换(resume, 重新 suspend)时不再定时
+     * @param pause 暂停器
+     */
+    protected void resumeLater(Predicate<Devourer> condition, Pause pause) {
+        timer.get().schedule(() -> {
+            if (pauseCondition != condition) return;
+            if (pause.isTimeout()) trigger();
+            else resumeLater(condition, pause);
+        }, Math.max(pause.leftNanos(), 0), TimeUnit.NANOSECONDS, exec);
+    }
+
+
     /**
      * 设置暂停条件
      * 使用 {@link #resume()} 恢复
@@ -306,13 +1072,15 @@ public class Devourer {
      * 关闭
      */
     public void shutdown() {
-        waiting.clear();
+        for (WheelTimer.Timeout timeout : delayedTasks) timeout.cancel();
+        delayedTasks.clear();
+        clearWaiting();
         if (exec instanceof ExecutorService) ((ExecutorService) exec).shutdown();
     }
 
 
     @Override
     public String toString() {
-        return key + "{parallel: " + getParallel() + ", waitingCount: " + getWaitingCount() + ", suspended: "+ isSuspended() + ", useLast: " + isUseLast() +"}";
+        return key + "{parallel: " + getParallel() + ", limit: " + getLimit() + ", waitingCount: " + getWaitingCount() + ", suspended: "+ isSuspended() + ", useLast: " + isUseLast() +"}";
     }
 }
@@ -0,0 +1,235 @@
+package cn.xnatural.app;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 加权公平调度器
+ * 位于各个对列({@link Devourer})和线程池之间: 每个对列一个通道({@link Lane}), 按权重轮流(DRR: 差额轮询)把通道中的任务提交到线程池
+ * 提交到线程池中还没执行完的任务数不超过 maxInflight, 多余的任务在各自通道中等待.
+ * 这样一个繁忙的对列不会在线程池的等待对列中堆积大量任务, 让其它对列的任务排在后边等很久
+ * 线程池拒绝任务时({@link RejectedExecutionException}), 任务放回所在通道的头, 一段时间后重试提交
+ * <pre>
+ * FairScheduler scheduler = new FairScheduler(exec, 16);
+ * new Devourer("q1", scheduler.lane("q1", 1));
+ * new Devourer("q2", scheduler.lane("q2", 4)); // 繁忙时 q2 得到 q1 的4倍执行机会
+ * </pre>
+ */
+public class FairScheduler {
+    protected static final Logger log = LoggerFactory.getLogger(FairScheduler.class);
+    /**
+     * 线程池
+     */
+    protected final Executor exec;
+    /**
+     * 提交到线程池中还没执行完的任务数限制
+     */
+    protected final LatchLock inflight = new LatchLock();
+    /**
+     * 有任务的通道
+     */
+    protected final Queue<Lane> active = new ConcurrentLinkedQueue<>();
+    /**
+     * 当前轮到的通道(差额还没用完)
+     */
+    protected volatile Lane current;
+    /**
+     * 线程池拒绝后重试提交的延迟时长(单位: ms)
+     */
+    protected long retryDelay = 10;
+    /**
+     * 是否已有一个重试在等待
+     */
+    protected final AtomicBoolean retrying = new AtomicBoolean(false);
+
+
+    /**
+     * 创建加权公平调度器
+     * @param exec 线程池
+     * @param maxInflight 提交到线程池中还没执行完的任务数限制. 一般为线程池的最大线程数
+     */
+    public FairScheduler(Executor exec, int maxInflight) {
+        if (exec == null) throw new IllegalArgumentException("Param exec required");
+        this.exec = exec;
+        inflight.limit(maxInflight);
+    }
+
+
+    /**
+     * 创建一个通道
+     * @param name 通道名
+     * @param weight 权重 >=1
+     * @return {@link Lane}
+     */
+    public Lane lane(String name, int weight) { return new Lane(name, weight); }
+
+
+    /**
+     * 不断的从通道中取任务提交到线程池
+     */
+    protected void dispatch() {
+        final Lane[] from = {null};
+        while (current != null || !active.isEmpty()) {
+            if (!inflight.tryLock()) return;
+            final Runnable task = next(from);
+            if (task == null) {
+                inflight.release();
+                continue;
+            }
+            try {
+                exec.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        inflight.release();
+                        dispatch();
+                    }
+                });
+            } catch (RejectedExecutionException ex) { // 线程池满: 任务放回通道头, 延迟重试
+                inflight.release();
+                from[0].addFirst(task);
+                log.warn("FairScheduler lane '{}' rejected by executor, retry after {}ms. {}", from[0].name, retryDelay, ex.getMessage());
+                retry();
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * 延迟一段时间后重试提交. 同一时间最多只有一个重试在等待
+     * 重试在线程池中执行: 线程池仍然拒绝时由定时器继续等待, 不会在定时器线程中执行任务
+     */
+    protected void retry() {
+        if (!retrying.compareAndSet(false, true)) return;
+        Devourer.timer.get().schedule(() -> {
+            retrying.set(false);
+            dispatch();
+        }, retryDelay, TimeUnit.MILLISECONDS, exec);
+    }
+
+
+    /**
+     * 按差额轮询取下一个任务
+     * 每轮到一个通道, 通道的差额加上权重, 每取一个任务差额减1, 差额用完轮到下一个通道
+     * @param from 返回: 任务所在的通道
+     * @return null: 所有通道都没有任务
+     */
+    protected synchronized Runnable next(Lane[] from) {
+        for (;;) {
+            Lane lane = current;
+            if (lane == null) {
+                lane = active.poll();
+                if (lane == null) return null;
+                lane.deficit += lane.weight;
+                current = lane;
+            }
+            final Runnable task = lane.tasks.poll();
+            if (task == null) {
+                current = null;
+                lane.deficit = 0;
+                lane.deactivate();
+                continue;
+            }
+            lane.waitingCount.decrementAndGet();
+            from[0] = lane;
+            if (--lane.deficit <= 0) {
+                current = null;
+                if (lane.tasks.isEmpty()) lane.deactivate();
+                else active.offer(lane);
+            }
+            return task;
+        }
+    }
+
+
+    /**
+     * 调度通道: 一个对列对应一个通道
+     */
+    public class Lane implements Executor {
+        /**
+         * 通道名
+         */
+        protected final String name;
+        /**
+         * 权重
+         */
+        protected final int weight;
+        /**
+         * 通道中等待提交到线程池的任务
+         */
+        protected final Deque<Runnable> tasks = new ConcurrentLinkedDeque<>();
+        protected final AtomicInteger waitingCount = new AtomicInteger();
+        /**
+         * 是否在 {@link FairScheduler#active} 中或者是 {@link FairScheduler#current}
+         */
+        protected final AtomicBoolean activated = new AtomicBoolean(false);
+        /**
+         * 差额. 只在 {@link FairScheduler#next()} 中修改
+         */
+        protected int deficit;
+
+        protected Lane(String name, int weight) {
+            if (weight < 1) throw new IllegalArgumentException("Param weight >= 1");
+            this.name = name;
+            this.weight = weight;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            waitingCount.incrementAndGet();
+            tasks.offer(task);
+            if (activated.compareAndSet(false, true)) active.offer(this);
+            dispatch();
+        }
+
+        /**
+         * 任务放回通道头: 线程池拒绝时
+         */
+        protected void addFirst(Runnable task) {
+            waitingCount.incrementAndGet();
+            tasks.offerFirst(task);
+            if (activated.compareAndSet(false, true)) active.offer(this);
+        }
+
+        /**
+         * 通道已空, 取消激活. 取消后如果又有了新任务, 重新激活
+         */
+        protected void deactivate() {
+            activated.set(false);
+            if (!tasks.isEmpty() && activated.compareAndSet(false, true)) active.offer(this);
+        }
+
+        /**
+         * 通道中等待提交到线程池的任务数
+         */
+        public int getWaitingCount() { return waitingCount.get(); }
+
+        public int getWeight() { return weight; }
+
+        @Override
+        public String toString() { return name + "{weight: " + weight + ", waitingCount: " + getWaitingCount() + "}"; }
+    }
+
+
+    /**
+     * 提交到线程池中还没执行完的任务数
+     */
+    public int getInflight() { return inflight.getLatchSize(); }
+
+
+    @Override
+    public String toString() {
+        return "FairScheduler{inflight: " + getInflight() + ", maxInflight: " + inflight.getLimit() + "}";
+    }
+}
@@ -0,0 +1,196 @@
+package cn.xnatural.app;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 线程池大小的爬山算法控制器
+ * 按固定间隔采样完成任务数(吞吐量)和排对时长, 在 [min, max] 之间调整线程数, 使每秒完成的任务数最大
+ * 有积压时: 上次调整后吞吐量提升, 继续同方向调整; 下降, 反方向调整
+ *   基本不变: 上次调整过(增加的线程没用, 或减少的线程不影响)则减少线程; 上次没调整并且排对时长超过 target 则试探增加
+ * 没有积压时: 忙的线程比当前线程数少一个步长以上, 减少线程
+ * <pre>
+ * HillClimbing climber = new HillClimbing(8, 64, Duration.ofMillis(50));
+ * // 每个采样间隔
+ * int size = climber.next(exec.getCompletedTaskCount(), exec.getActiveCount(), exec.getQueue().size(), headWait);
+ * exec.setMaximumPoolSize(size) ...
+ * </pre>
+ */
+public class HillClimbing {
+    /**
+     * 线程数范围
+     */
+    protected volatile int min, max;
+    /**
+     * 目标排对时长(单位: ns)
+     */
+    protected final long target;
+    /**
+     * 每次调整的线程数
+     */
+    protected volatile int step = 1;
+    /**
+     * 吞吐量变化超过这个比例才算 提升/下降. 过滤采样噪声
+     */
+    protected volatile double tolerance = 0.05;
+    /**
+     * 当前线程数
+     */
+    protected volatile int size;
+    /**
+     * 调整方向: 1 增加, -1 减少
+     */
+    protected int direction = 1;
+    /**
+     * 上次采样: 完成任务数, 时间点, 吞吐量(每秒完成任务数). lastThroughput 小于0: 还没有
+     */
+    protected long lastCompleted = -1, lastTime;
+    protected volatile double lastThroughput = -1;
+    /**
+     * 最近一次决策: up, down, hold
+     */
+    protected volatile String lastAction = "hold";
+    /**
+     * 统计: 增加/减少 的次数
+     */
+    protected final LongAdder ups = new LongAdder(), downs = new LongAdder();
+
+
+    /**
+     * 创建控制器
+     * @param min 最少线程数
+     * @param max 最多线程数
+     * @param target 目标排对时长: 吞吐量不变时, 排对时长超过此值才增加线程
+     */
+    public HillClimbing(int min, int max, Duration target) {
+        if (min < 1 || max < min) throw new IllegalArgumentException("Param 1 <= min <= max");
+        if (target == null || target.isNegative()) throw new IllegalArgumentException("Param target >= 0");
+        this.min = min;
+        this.max = max;
+        this.target = target.toNanos();
+        this.size = min;
+    }
+
+
+    /**
+     * 设置线程数范围: 当前线程数超出范围时调整到范围内
+     * @param min 最少线程数
+     * @param max 最多线程数
+     * @return {@link HillClimbing}
+     */
+    public synchronized HillClimbing range(int min, int max) {
+        if (min < 1 || max < min) throw new IllegalArgumentException("Param 1 <= min <= max");
+        this.min = min;
+        this.max = max;
+        this.size = Math.max(min, Math.min(max, size));
+        return this;
+    }
+
+
+    /**
+     * 设置每次调整的线程数
+     * @param step 线程数 >= 1
+     * @return {@link HillClimbing}
+     */
+    public HillClimbing step(int step) {
+        if (step < 1) throw new IllegalArgumentException("Param step >= 1");
+        this.step = step;
+        return this;
+    }
+
+
+    /**
+     * 设置吞吐量变化的容忍比例
+     * @param tolerance 0 ~ 1
+     * @return {@link HillClimbing}
+     */
+    public HillClimbing tolerance(double tolerance) {
+        if (tolerance < 0 || tolerance >= 1) throw new IllegalArgumentException("Param tolerance 0 ~ 1");
+        this.tolerance = tolerance;
+        return this;
+    }
+
+
+    /**
+     * 采样并决策(单线程调用)
+     * @param completed 累计完成的任务数
+     * @param active 正在执行任务的线程数
+     * @param waiting 等待的任务数
+     * @param queueDelay 等待最久的任务的排对时长(单位: ns). 不知道时: 有积压传 {@link Long#MAX_VALUE}
+     * @return 新的线程数
+     */
+    public synchronized int next(long completed, int active, int waiting, long queueDelay) {
+        final long now = System.nanoTime();
+        if (lastCompleted < 0) { // 第一次采样: 只记录
+            lastCompleted = completed;
+            lastTime = now;
+            return size;
+        }
+        final double throughput = (completed - lastCompleted) * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(1, now - lastTime);
+        lastCompleted = completed;
+        lastTime = now;
+        final double prev = lastThroughput;
+        lastThroughput = throughput;
+
+        int delta = 0;
+        if (waiting > 0) { // 有积压: 爬山
+            if (prev <= 0) direction = 1;
+            else if (throughput < prev * (1 - tolerance)) direction = -direction; // 下降: 反方向
+            else if (throughput <= prev * (1 + tolerance)) { // 基本不变
+                if (!"hold".equals(lastAction)) direction = -1;
+                else if (queueDelay > target) direction = 1; // 试探
+                else return holdAt(size);
+            } // 提升: 继续同方向
+            delta = direction * step;
+        } else if (active <= size - step) { // 没有积压并且有空闲线程
+            delta = -step;
+            direction = 1;
+        }
+        final int newSize = Math.max(min, Math.min(max, size + delta));
+        if (newSize > size) {
+            lastAction = "up";
+            ups.increment();
+        } else if (newSize < size) {
+            lastAction = "down";
+            downs.increment();
+        } else return holdAt(size);
+        size = newSize;
+        return newSize;
+    }
+
+
+    protected int holdAt(int size) {
+        lastAction = "hold";
+        return size;
+    }
+
+
+    /**
+     * 当前线程数
+     */
+    public int size() { return size; }
+
+
+    /**
+     * 统计快照
+     * @return size: 当前线程数, throughput: 最近一次采样的吞吐量(每秒完成任务数), lastAction: 最近一次决策, ups/downs: 增加/减少 的次数
+     */
+    public Map<String, Object> stats() {
+        final Map<String, Object> data = new LinkedHashMap<>();
+        data.put("size", size);
+        data.put("throughput", Math.max(0, Math.round(lastThroughput)));
+        data.put("lastAction", lastAction);
+        data.put("ups", ups.sum());
+        data.put("downs", downs.sum());
+        return data;
+    }
+
+
+    @Override
+    public String toString() {
+        return "HillClimbing{size: " + size + ", min: " + min + ", max: " + max + ", throughput: " + Math.round(lastThroughput) + "/s, lastAction: " + lastAction + "}";
+    }
+}
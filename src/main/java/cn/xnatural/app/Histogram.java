@@ -0,0 +1,123 @@
+package cn.xnatural.app;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 直方图(对数分桶, 无锁)
+ * 每个2的幂区间再均分为8个子桶, 相对误差不超过 12.5%. 记录一个值只是几次原子加, 适合在每个任务执行时记录
+ * <pre>
+ * Histogram h = new Histogram();
+ * h.record(System.nanoTime() - start);
+ * h.percentile(0.99);
+ * </pre>
+ */
+public class Histogram {
+    /**
+     * 每个2的幂区间的子桶位数: 2^3 = 8 个子桶
+     */
+    protected static final int SUB_BITS = 3;
+    protected static final int SUB_COUNT = 1 << SUB_BITS;
+    /**
+     * 各个桶的个数
+     */
+    protected final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS) * SUB_COUNT);
+    protected final LongAdder count = new LongAdder();
+    protected final LongAdder sum = new LongAdder();
+    protected final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+
+    /**
+     * 记录一个值
+     * @param value >=0. 小于0的当0记录
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+
+    /**
+     * 值所在的桶
+     */
+    protected static int index(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        final int msb = 63 - Long.numberOfLeadingZeros(value);
+        return ((msb - SUB_BITS + 1) << SUB_BITS) + (int) ((value >>> (msb - SUB_BITS)) & (SUB_COUNT - 1));
+    }
+
+
+    /**
+     * 桶的代表值(桶区间的中间值)
+     */
+    protected static long value(int index) {
+        if (index < SUB_COUNT) return index;
+        final int shift = (index >>> SUB_BITS) - 1;
+        final long lower = (long) (SUB_COUNT + (index & (SUB_COUNT - 1))) << shift;
+        return lower + ((1L << shift) >>> 1);
+    }
+
+
+    /**
+     * 百分位值
+     * @param p (0, 1]. 例: 0.99
+     * @return 0: 没有记录
+     */
+    public long percentile(double p) {
+        if (p <= 0 || p > 1) throw new IllegalArgumentException("Param p in (0, 1]");
+        long total = 0;
+        final long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total < 1) return 0;
+        final long target = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) return Math.min(value(i), getMax());
+        }
+        return getMax();
+    }
+
+
+    public long getCount() { return count.sum(); }
+
+    public long getMax() { return max.get(); }
+
+    public double getMean() {
+        final long c = count.sum();
+        return c < 1 ? 0 : sum.sum() / (double) c;
+    }
+
+
+    /**
+     * 快照: count, mean, p50, p90, p99, max
+     * @param scale 值的缩放. 例: 记录的是ns, 需要ms时为 1e-6
+     * @return 快照
+     */
+    public Map<String, Object> snapshot(double scale) {
+        final Map<String, Object> data = new LinkedHashMap<>();
+        data.put("count", getCount());
+        data.put("mean", round(getMean() * scale));
+        data.put("p50", round(percentile(0.5) * scale));
+        data.put("p90", round(percentile(0.9) * scale));
+        data.put("p99", round(percentile(0.99) * scale));
+        data.put("max", round(getMax() * scale));
+        return data;
+    }
+
+
+    protected static double round(double v) { return Math.round(v * 1000) / 1000.0; }
+
+
+    @Override
+    public String toString() { return "Histogram" + snapshot(1); }
+}
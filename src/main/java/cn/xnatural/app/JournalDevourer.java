@@ -0,0 +1,378 @@
+package cn.xnatural.app;
+
+import cn.xnatural.app.util.Journal;
+
+import java.io.*;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 可持久化对列执行器
+ * 数据先放内存中, 内存中的个数超过 {@link #memory(int)} 后, 内存中的数据和之后的数据都追加写入磁盘日志({@link Journal}), 内存不会因为下游长时间故障而无限增长
+ * 内存和磁盘日志不会同时有数据, 所以先进先出
+ * 磁盘日志中的数据在重启后继续消费; 消费成功(确认)后的日志段文件被删除
+ * 按入对顺序一个一个消费(并发固定为1). 关闭时等待正在消费的数据消费完, 内存中还没消费的数据写入磁盘日志
+ * 典型应用: 数据上报场景
+ * <pre>
+ * JournalDevourer&lt;Report&gt; q = new JournalDevourer&lt;Report&gt;("report", exec, new File("./data/report"))
+ *     .memory(1000)
+ *     .consumer(report -&gt; http.post(report));
+ * q.failMaxKeep(1); // 失败时保留数据, 不断重试
+ * q.offer(report);
+ * </pre>
+ * @param <T> 数据类型
+ */
+public class JournalDevourer<T extends Serializable> extends Devourer {
+    /**
+     * 磁盘日志
+     */
+    protected final Journal journal;
+    /**
+     * 内存中等待消费的数据
+     */
+    protected final Queue<T> memory = new ConcurrentLinkedQueue<>();
+    protected final AtomicInteger memoryCount = new AtomicInteger();
+    /**
+     * 内存中最多个数, 超过后写入磁盘日志
+     */
+    protected int memoryMax = 1000;
+    /**
+     * 是否已有一个 {@link Pump} 在对列中
+     */
+    protected final AtomicBoolean pumping = new AtomicBoolean(false);
+    /**
+     * 入对锁: 保证 内存/磁盘 两部分数据的顺序. 内存中数据的 入对/删除/写入磁盘 都在此锁中
+     */
+    protected final Object offerLock = new Object();
+    /**
+     * 正在消费的数据在哪: 0 没有, {@link #IN_MEMORY}, {@link #IN_JOURNAL}. 在 {@link #offerLock} 中修改
+     */
+    protected int consuming;
+    protected static final int IN_MEMORY = 1, IN_JOURNAL = 2;
+    /**
+     * 是否已关闭: 不再开始消费新的数据
+     */
+    protected volatile boolean closed;
+    /**
+     * 关闭时最多等待正在消费的数据消费完的时长(单位: ms)
+     */
+    protected long shutdownWait = TimeUnit.SECONDS.toMillis(10);
+    /**
+     * 消费函数
+     */
+    protected Consumer<T> consumer;
+
+
+    /**
+     * 创建可持久化对列
+     * @param key 对列标识, 也是日志文件名前缀
+     * @param exec 线程池
+     * @param dir 日志文件目录
+     * @param segmentSize 日志段文件大小(单位: byte)
+     */
+    public JournalDevourer(String key, Executor exec, File dir, int segmentSize) {
+        super(key, exec);
+        this.journal = new Journal(dir, this.key, segmentSize);
+    }
+
+    /**
+     * 创建可持久化对列, 日志段文件大小 16M
+     * @param key 对列标识, 也是日志文件名前缀
+     * @param exec 线程池
+     * @param dir 日志文件目录
+     */
+    public JournalDevourer(String key, Executor exec, File dir) { this(key, exec, dir, 16 * 1024 * 1024); }
+
+
+    /**
+     * 数据入对列
+     * 内存满时, 内存中的数据先写入磁盘日志; 磁盘日志中有数据时, 后来的数据也写入磁盘. 以保证顺序
+     * @param item 数据
+     * @return {@link JournalDevourer}
+     */
+    public JournalDevourer<T> offer(T item) {
+        if (item == null) return this;
+        synchronized (offerLock) {
+            if (journal.size() < 1 && memoryCount.get() < memoryMax) {
+                memory.offer(item);
+                memoryCount.incrementAndGet();
+            } else {
+                spill();
+                journal.append(serialize(item));
+            }
+        }
+        pump();
+        return this;
+    }
+
+
+    /**
+     * 提交一个 {@link Pump} 到对列(对列中最多一个)
+     */
+    protected void pump() {
+        if (!closed && getItemCount() > 0 && pumping.compareAndSet(false, true)) {
+            try {
+                super.offer(new Pump());
+            } catch (RuntimeException ex) { // 对列满被拒绝: 否则不会再提交新的 Pump
+                pumping.set(false);
+                throw ex;
+            }
+        }
+    }
+
+
+    /**
+     * {@link Pump} 被丢弃(对列满, 关闭): 下次入对时重新提交
+     */
+    @Override
+    protected void discard(Runnable fn) {
+        if (fn instanceof JournalDevourer.Pump) pumping.set(false);
+        else super.discard(fn);
+    }
+
+
+    /**
+     * 内存中的数据按顺序写入磁盘日志. 在 {@link #offerLock} 中调用
+     * 只在磁盘日志为空时才会有内存中的数据, 所以写入后顺序不变
+     * 正在消费的内存中的数据也写入(成为磁盘日志的第一个), 消费完后确认磁盘日志
+     * @return 写入的个数
+     */
+    protected int spill() {
+        int count = 0;
+        for (T item = memory.poll(); item != null; item = memory.poll()) {
+            memoryCount.decrementAndGet();
+            journal.append(serialize(item));
+            count++;
+        }
+        if (count > 0 && consuming == IN_MEMORY) consuming = IN_JOURNAL;
+        return count;
+    }
+
+
+    /**
+     * 消费数据的任务
+     * 每次执行连续消费最多 {@link #drainMax} 个数据或者 {@link #drainTime} 时长
+     * 失败时: 如果 failMaxKeep > 0 保留数据(由 {@link Devourer#run(Devourer.Task)} 重新入对此任务重试), 否则丢弃数据
+     */
+    protected class Pump implements Runnable {
+        @Override
+        public void run() {
+            final Consumer<T> fn = consumer;
+            if (fn == null) { // 设置消费函数时再提交
+                pumping.set(false);
+                return;
+            }
+            final boolean keep = failMaxKeep != null && failMaxKeep > 0;
+            final long start = System.nanoTime();
+            boolean retry = false;
+            try {
+                for (int count = 0; count < drainMax && (count == 0 || System.nanoTime() - start < drainTime) && !isSuspended(); count++) {
+                    final boolean fromMemory;
+                    T item;
+                    synchronized (offerLock) {
+                        if (closed) break;
+                        fromMemory = memoryCount.get() > 0;
+                        item = fromMemory ? memory.peek() : null;
+                        consuming = fromMemory ? IN_MEMORY : IN_JOURNAL;
+                    }
+                    if (!fromMemory && (item = peekJournal()) == null) {
+                        consumed(false, false);
+                        break;
+                    }
+                    boolean succeed = false;
+                    try {
+                        fn.accept(item);
+                        succeed = true;
+                    } catch (RuntimeException | Error ex) {
+                        if (keep) retry = true;
+                        throw ex;
+                    } finally {
+                        consumed(fromMemory, succeed || !retry);
+                    }
+                }
+            } finally {
+                if (!retry) {
+                    pumping.set(false);
+                    pump();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * 一个数据消费结束: 删除已消费的数据, 通知等待的 {@link #shutdown()}
+     * @param fromMemory 数据取自内存
+     * @param remove 是否删除(失败保留重试时不删除)
+     */
+    protected void consumed(boolean fromMemory, boolean remove) {
+        synchronized (offerLock) {
+            if (remove) {
+                if (consuming == IN_MEMORY) {
+                    memory.poll();
+                    memoryCount.decrementAndGet();
+                } else {
+                    if (fromMemory) journal.peek(); // 消费期间已被写入磁盘日志, 是磁盘日志的第一个
+                    journal.ack();
+                }
+            }
+            consuming = 0;
+            offerLock.notifyAll();
+        }
+    }
+
+
+    /**
+     * 从磁盘日志中取下一个数据. 不能反序列化的数据直接丢弃
+     */
+    protected T peekJournal() {
+        for (byte[] bs = journal.peek(); bs != null; bs = journal.peek()) {
+            try {
+                return deserialize(bs);
+            } catch (Exception ex) {
+                log.error(key + " deserialize error, drop it", ex);
+                journal.ack();
+            }
+        }
+        return null;
+    }
+
+
+    protected byte[] serialize(T item) {
+        try (ByteArrayOutputStream bos = new ByteArrayOutputStream(); ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(item);
+            oos.flush();
+            return bos.toByteArray();
+        } catch (IOException ex) {
+            throw new RuntimeException(key + " serialize error", ex);
+        }
+    }
+
+
+    /**
+     * 反序列化磁盘日志中的一个数据
+     * 磁盘日志只写入此对列的数据 {@link #serialize(Serializable)}, 读出的一定是 T(java 反序列化只能是未检查的转换)
+     */
+    @SuppressWarnings("unchecked")
+    protected T deserialize(byte[] bs) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bs)) {
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                try {
+                    return Class.forName(desc.getName(), false, Thread.currentThread().getContextClassLoader());
+                } catch (ClassNotFoundException ex) {
+                    return super.resolveClass(desc);
+                }
+            }
+        }) {
+            return (T) ois.readObject();
+        }
+    }
+
+
+    /**
+     * 设置内存中最多个数, 超过后写入磁盘日志
+     * @param max >=0. 0: 所有数据都写入磁盘日志
+     * @return {@link JournalDevourer}
+     */
+    public JournalDevourer<T> memory(int max) {
+        if (max < 0) throw new IllegalArgumentException("Param max >= 0");
+        this.memoryMax = max;
+        return this;
+    }
+
+
+    /**
+     * 设置消费函数. 开始消费(包括上次没消费完的数据)
+     * @param consumer 消费函数
+     * @return {@link JournalDevourer}
+     */
+    public JournalDevourer<T> consumer(Consumer<T> consumer) {
+        this.consumer = consumer;
+        pump();
+        return this;
+    }
+
+
+    /**
+     * 按顺序确认消费, 并发固定为1
+     */
+    @Override
+    public Devourer parallel(int parallel) {
+        if (parallel != 1) throw new UnsupportedOperationException("JournalDevourer only support parallel 1");
+        return super.parallel(parallel);
+    }
+
+
+    @Override
+    public Devourer adaptive(int min, int max) {
+        throw new UnsupportedOperationException("JournalDevourer only support parallel 1");
+    }
+
+
+    @Override
+    public Devourer adaptive(int min, int max, double tolerance, double backoff) {
+        throw new UnsupportedOperationException("JournalDevourer only support parallel 1");
+    }
+
+
+    /**
+     * 可持久化对列不支持 useLast: 会丢弃 {@link Pump}
+     */
+    @Override
+    public Devourer useLast(boolean useLast) {
+        if (useLast) throw new UnsupportedOperationException("JournalDevourer not support useLast");
+        return this;
+    }
+
+
+    /**
+     * 等待消费的数据个数(内存 + 磁盘)
+     */
+    public long getItemCount() { return memoryCount.get() + journal.size(); }
+
+
+    /**
+     * 磁盘日志中等待消费的数据个数
+     */
+    public long getJournalCount() { return journal.size(); }
+
+
+    /**
+     * 关闭: 等待正在消费的数据消费完(最多 {@link #shutdownWait}), 内存中还没消费的数据写入磁盘日志, 下次启动时继续消费
+     */
+    @Override
+    public void shutdown() {
+        synchronized (offerLock) {
+            closed = true;
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownWait);
+            try {
+                while (consuming != 0) {
+                    final long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        log.warn("{} wait consuming item timeout on shutdown, it may be consumed again after restart", key);
+                        break;
+                    }
+                    offerLock.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)));
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            final int count = spill();
+            if (count > 0) log.info("{} spill {} items to journal on shutdown", key, count);
+        }
+        super.shutdown();
+        journal.close();
+    }
+
+
+    @Override
+    public String toString() {
+        return key + "{parallel: " + getParallel() + ", waitingCount: " + getWaitingCount() + ", memoryCount: " + memoryCount.get() + ", journalCount: " + getJournalCount() + ", suspended: "+ isSuspended() + "}";
+    }
+}
@@ -0,0 +1,192 @@
+package cn.xnatural.app;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+
+/**
+ * 按key分组的对列执行器
+ * 同一个key的任务严格按顺序一个一个执行, 不同key的任务并发执行(总并发不超过 {@link #parallel(int)})
+ * 每个有任务的key对应一个信箱(mailbox), 信箱中任务执行完后即被移除. 所以内存只和当前活动的key个数有关
+ * <pre>
+ * KeyedDevourer q = app.keyedQueue("orders").parallel(8);
+ * q.offer(userId, () -&gt; {
+ *     // 同一个用户的任务按顺序执行
+ * });
+ * </pre>
+ */
+public class KeyedDevourer {
+    protected static final Logger log = LoggerFactory.getLogger(KeyedDevourer.class);
+    /**
+     * 线程池
+     */
+    protected final Executor exec;
+    /**
+     * 队列标识
+     */
+    protected final String key;
+    /**
+     * 总并发限制锁. 默认: cpu核数
+     */
+    protected final LatchLock lock = new LatchLock().limit(Runtime.getRuntime().availableProcessors());
+    /**
+     * 当前有任务的信箱
+     */
+    protected final Map<Object, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    /**
+     * 等待执行的信箱. 一个信箱同一时间只会在此对列中出现一次或者正在执行
+     */
+    protected final Queue<Mailbox> ready = new ConcurrentLinkedQueue<>();
+    /**
+     * 错误处理函数
+     */
+    protected BiConsumer<Throwable, KeyedDevourer> errorHandler;
+
+
+    /**
+     * 创建按key分组的对列
+     * @param key 对列标识
+     * @param exec 线程池
+     */
+    public KeyedDevourer(String key, Executor exec) {
+        if (exec == null) throw new IllegalArgumentException("Param exec required");
+        this.key = (key == null || key.isEmpty()) ? KeyedDevourer.class.getSimpleName() + "@" + Integer.toHexString(hashCode()) : key;
+        this.exec = exec;
+    }
+
+
+    /**
+     * 任务入对列
+     * @param k 分组key. 同一个key的任务按顺序执行
+     * @param fn 任务函数
+     * @return {@link KeyedDevourer}
+     */
+    public KeyedDevourer offer(Object k, Runnable fn) {
+        if (k == null) throw new IllegalArgumentException("Param k required");
+        if (fn == null) return this;
+        // 在 compute 中修改信箱状态, 保证和信箱移除 {@link #finish(Mailbox)} 不会并发
+        mailboxes.compute(k, (kk, mailbox) -> {
+            if (mailbox == null) mailbox = new Mailbox(kk);
+            mailbox.tasks.offer(fn);
+            if (!mailbox.scheduled) {
+                mailbox.scheduled = true;
+                ready.offer(mailbox);
+            }
+            return mailbox;
+        });
+        trigger();
+        return this;
+    }
+
+
+    /**
+     * 不断的从 {@link #ready} 中取出信箱执行
+     * 每次只执行信箱中的一个任务, 然后信箱重新排到对尾, 保证各个key之间公平
+     */
+    protected void trigger() {
+        if (ready.isEmpty()) return;
+        if (!lock.tryLock()) return;
+        exec.execute(() -> {
+            Mailbox mailbox = null;
+            try {
+                mailbox = ready.poll();
+                if (mailbox != null) {
+                    Runnable task = mailbox.tasks.poll();
+                    if (task != null) task.run();
+                }
+            } catch (Throwable ex) {
+                if (errorHandler != null) {
+                    try {
+                        errorHandler.accept(ex, this);
+                    } catch (Throwable exx) {
+                        log.error(key + " errorHandler error", exx);
+                    }
+                } else {
+                    log.error(key + ": " + mailbox.key, ex);
+                }
+            } finally {
+                if (mailbox != null) finish(mailbox);
+                lock.release();
+                if (!ready.isEmpty()) trigger(); // 持续不断执行对列中的任务
+            }
+        });
+    }
+
+
+    /**
+     * 信箱中的一个任务执行完成: 还有任务则重新排对, 否则移除信箱
+     * @param mailbox 信箱
+     */
+    protected void finish(Mailbox mailbox) {
+        mailboxes.compute(mailbox.key, (k, m) -> {
+            if (mailbox.tasks.isEmpty()) {
+                mailbox.scheduled = false;
+                return null;
+            }
+            ready.offer(mailbox);
+            return mailbox;
+        });
+    }
+
+
+    /**
+     * 设置总并发数
+     * @param parallel >=1
+     * @return {@link KeyedDevourer}
+     */
+    public KeyedDevourer parallel(int parallel) {
+        if (parallel < 1) throw new IllegalArgumentException("Param parallel >= 1");
+        lock.limit(parallel);
+        return this;
+    }
+
+
+    /**
+     * 错误处理
+     * @param handler 错误处理器
+     * @return {@link KeyedDevourer}
+     */
+    public KeyedDevourer errorHandle(BiConsumer<Throwable, KeyedDevourer> handler) {
+        this.errorHandler = handler;
+        return this;
+    }
+
+
+    /**
+     * 当前有任务的key个数
+     */
+    public int getActiveKeyCount() { return mailboxes.size(); }
+
+
+    /**
+     * 正在执行的任务数
+     */
+    public int getParallel() { return lock.getLatchSize(); }
+
+
+    /**
+     * 信箱: 一个key的待执行任务
+     */
+    protected static class Mailbox {
+        protected final Object key;
+        protected final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        /**
+         * 是否已在 {@link KeyedDevourer#ready} 中或正在执行. 只在 {@link KeyedDevourer#mailboxes} compute 中修改
+         */
+        protected boolean scheduled;
+
+        protected Mailbox(Object key) { this.key = key; }
+    }
+
+
+    @Override
+    public String toString() {
+        return key + "{parallel: " + getParallel() + ", activeKeyCount: " + getActiveKeyCount() + "}";
+    }
+}
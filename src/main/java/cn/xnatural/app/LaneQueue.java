@@ -0,0 +1,431 @@
+package cn.xnatural.app;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 多优先级对列(带老化)
+ * 每个优先级一个无锁的FIFO通道, 取出时优先取高优先级通道的任务
+ * 老化: 通道头的元素每等待 agingTime 时长, 优先级提升一级. 所以低优先级的任务等待一段时间后也会被取出, 不会饿死
+ * 同一通道内保持FIFO. 实现了 {@link BlockingQueue}, 可以作为线程池的等待对列
+ * 元素实现 {@link Prioritized} 时按其优先级入对, 否则为 {@link #NORMAL}
+ * <pre>
+ * LaneQueue&lt;Runnable&gt; q = new LaneQueue&lt;&gt;(100000).aging(Duration.ofMillis(500));
+ * q.offer(fn, LaneQueue.HIGH);
+ * q.offer(LaneQueue.prioritized(fn, LaneQueue.LOW));
+ * </pre>
+ * @param <E> 元素类型
+ */
+public class LaneQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+    /**
+     * 优先级: 低, 普通(默认), 高
+     */
+    public static final int LOW = 0, NORMAL = 1, HIGH = 2;
+    /**
+     * 各个优先级的通道. 下标即优先级
+     */
+    protected final List<Deque<Node<E>>> lanes;
+    /**
+     * 元素个数. 避免 {@link ConcurrentLinkedDeque#size()} 遍历
+     */
+    protected final AtomicInteger count = new AtomicInteger();
+    /**
+     * 容量
+     */
+    protected final int capacity;
+    /**
+     * 老化时长(单位: ns): 每等待这么长时间优先级提升一级. 0: 不老化
+     */
+    protected volatile long agingTime = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * 阻塞等待 取/放 的锁
+     */
+    protected final ReentrantLock lock = new ReentrantLock();
+    protected final Condition notEmpty = lock.newCondition(), notFull = lock.newCondition();
+    /**
+     * 正在等待 取/放 的线程个数. 没有线程等待时 入对/出对 不加锁
+     */
+    protected final AtomicInteger takers = new AtomicInteger(), putters = new AtomicInteger();
+
+
+    /**
+     * 创建多优先级对列
+     * @param capacity 容量
+     */
+    public LaneQueue(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Param capacity >= 1");
+        this.capacity = capacity;
+        this.lanes = new ArrayList<>(HIGH + 1);
+        for (int i = 0; i <= HIGH; i++) lanes.add(new ConcurrentLinkedDeque<>());
+    }
+
+    /**
+     * 创建不限容量的多优先级对列
+     */
+    public LaneQueue() { this(Integer.MAX_VALUE); }
+
+
+    /**
+     * 设置老化时长: 每等待这么长时间优先级提升一级
+     * @param agingTime 老化时长. 0: 不老化(严格按优先级)
+     * @return {@link LaneQueue}
+     */
+    public LaneQueue<E> aging(Duration agingTime) {
+        if (agingTime == null || agingTime.isNegative()) throw new IllegalArgumentException("Param agingTime >= 0");
+        this.agingTime = agingTime.toNanos();
+        return this;
+    }
+
+
+    /**
+     * 按优先级入对
+     * @param e 元素
+     * @param priority 优先级 {@link #LOW}, {@link #NORMAL}, {@link #HIGH}
+     * @return false: 对列已满
+     */
+    public boolean offer(E e, int priority) {
+        if (e == null) throw new NullPointerException();
+        for (;;) { // 先占位再入对: 保证 count 不小于实际个数, isEmpty 不会漏掉已入对的元素
+            final int c = count.get();
+            if (c >= capacity) return false;
+            if (count.compareAndSet(c, c + 1)) break;
+        }
+        lanes.get(lane(priority)).offerLast(new Node<>(e));
+        signalNotEmpty();
+        return true;
+    }
+
+
+    /**
+     * 按优先级加入对列头(例: 失败重试). 不受容量限制
+     * @param e 元素
+     * @param priority 优先级
+     */
+    public void addFirst(E e, int priority) {
+        if (e == null) throw new NullPointerException();
+        count.incrementAndGet();
+        lanes.get(lane(priority)).offerFirst(new Node<>(e));
+        signalNotEmpty();
+    }
+
+
+    @Override
+    public boolean offer(E e) {
+        return offer(e, e instanceof Prioritized ? ((Prioritized) e).priority() : NORMAL);
+    }
+
+
+    /**
+     * 取出下一个元素: 有效优先级(优先级 + 等待时长 / agingTime)最高的通道的头元素. 相同时取高优先级通道的
+     * @return null: 对列为空
+     */
+    @Override
+    public E poll() {
+        while (count.get() > 0) {
+            final long aging = agingTime;
+            final long now = System.nanoTime();
+            int best = -1;
+            long bestScore = 0;
+            for (int i = lanes.size() - 1; i >= 0; i--) {
+                final Node<E> head = lanes.get(i).peekFirst();
+                if (head == null) continue;
+                final long score = aging > 0 ? i + (now - head.time) / aging : i;
+                if (best < 0 || score > bestScore) {
+                    best = i;
+                    bestScore = score;
+                }
+            }
+            if (best < 0) { // 已占位还没入对
+                Thread.yield();
+                continue;
+            }
+            final Node<E> node = lanes.get(best).pollFirst();
+            if (node != null) return taken(node);
+        }
+        return null;
+    }
+
+
+    /**
+     * 取出最低优先级通道的头元素. 例: 对列满时丢弃最不重要的
+     * @return null: 对列为空
+     */
+    public E pollLowest() {
+        while (count.get() > 0) {
+            for (Deque<Node<E>> lane : lanes) {
+                final Node<E> node = lane.pollFirst();
+                if (node != null) return taken(node);
+            }
+            Thread.yield();
+        }
+        return null;
+    }
+
+
+    protected E taken(Node<E> node) {
+        count.decrementAndGet();
+        if (putters.get() > 0) {
+            lock.lock();
+            try { notFull.signal(); } finally { lock.unlock(); }
+        }
+        return node.item;
+    }
+
+
+    protected void signalNotEmpty() {
+        if (takers.get() > 0) {
+            lock.lock();
+            try { notEmpty.signal(); } finally { lock.unlock(); }
+        }
+    }
+
+
+    protected int lane(int priority) { return Math.max(LOW, Math.min(HIGH, priority)); }
+
+
+    @Override
+    public E peek() {
+        for (int i = lanes.size() - 1; i >= 0; i--) {
+            final Node<E> head = lanes.get(i).peekFirst();
+            if (head != null) return head.item;
+        }
+        return null;
+    }
+
+
+    @Override
+    public E take() throws InterruptedException {
+        for (;;) {
+            final E e = poll();
+            if (e != null) return e;
+            lock.lockInterruptibly();
+            takers.incrementAndGet();
+            try {
+                // 先增加 takers 再检查 count: 入对的线程要么能看到 takers, 要么这里能看到 count
+                while (count.get() < 1) notEmpty.await();
+            } finally {
+                takers.decrementAndGet();
+                lock.unlock();
+            }
+        }
+    }
+
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (;;) {
+            final E e = poll();
+            if (e != null) return e;
+            long left = deadline - System.nanoTime();
+            if (left <= 0) return null;
+            lock.lockInterruptibly();
+            takers.incrementAndGet();
+            try {
+                while (count.get() < 1 && left > 0) left = notEmpty.awaitNanos(left);
+            } finally {
+                takers.decrementAndGet();
+                lock.unlock();
+            }
+        }
+    }
+
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        while (!offer(e)) {
+            lock.lockInterruptibly();
+            putters.incrementAndGet();
+            try {
+                while (count.get() >= capacity) notFull.await();
+            } finally {
+                putters.decrementAndGet();
+                lock.unlock();
+            }
+        }
+    }
+
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(e)) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) return false;
+            lock.lockInterruptibly();
+            putters.incrementAndGet();
+            try {
+                while (count.get() >= capacity && left > 0) left = notFull.awaitNanos(left);
+            } finally {
+                putters.decrementAndGet();
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+
+    @Override
+    public int remainingCapacity() { return capacity == Integer.MAX_VALUE ? Integer.MAX_VALUE : Math.max(0, capacity - count.get()); }
+
+
+    @Override
+    public int drainTo(Collection<? super E> c) { return drainTo(c, Integer.MAX_VALUE); }
+
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null) throw new NullPointerException();
+        if (c == this) throw new IllegalArgumentException();
+        int n = 0;
+        for (E e; n < maxElements && (e = poll()) != null; n++) c.add(e);
+        return n;
+    }
+
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) return false;
+        for (Deque<Node<E>> lane : lanes) {
+            for (Iterator<Node<E>> it = lane.iterator(); it.hasNext(); ) {
+                final Node<E> node = it.next();
+                if (o.equals(node.item) && lane.removeFirstOccurrence(node)) {
+                    taken(node);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * 元素个数 O(1)
+     */
+    @Override
+    public int size() { return count.get(); }
+
+
+    @Override
+    public boolean isEmpty() { return count.get() < 1; }
+
+
+    /**
+     * 优先级不高于 maxPriority 的通道中, 等待最久的通道头元素的等待时长
+     * @param maxPriority 最高优先级
+     * @return 单位: ns. 0: 通道为空
+     */
+    public long headWait(int maxPriority) {
+        final long now = System.nanoTime();
+        long max = 0;
+        for (int i = 0; i <= lane(maxPriority); i++) {
+            final Node<E> head = lanes.get(i).peekFirst();
+            if (head != null) max = Math.max(max, now - head.time);
+        }
+        return max;
+    }
+
+
+    /**
+     * 各个优先级通道中的元素个数
+     * @return [低, 普通, 高]
+     */
+    public int[] laneSizes() {
+        final int[] sizes = new int[lanes.size()];
+        for (int i = 0; i < lanes.size(); i++) sizes[i] = lanes.get(i).size();
+        return sizes;
+    }
+
+
+    /**
+     * 弱一致性的迭代器: 从高优先级到低优先级
+     */
+    @Override
+    public Iterator<E> iterator() {
+        final List<E> items = new ArrayList<>();
+        for (int i = lanes.size() - 1; i >= 0; i--) {
+            for (Node<E> node : lanes.get(i)) items.add(node.item);
+        }
+        final Iterator<E> it = items.iterator();
+        return new Iterator<E>() {
+            E last;
+            @Override
+            public boolean hasNext() { return it.hasNext(); }
+            @Override
+            public E next() { return last = it.next(); }
+            @Override
+            public void remove() {
+                if (last == null) throw new IllegalStateException();
+                LaneQueue.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+
+    /**
+     * 通道中的元素
+     */
+    protected static class Node<E> {
+        protected final E item;
+        /**
+         * 入对时间点 {@link System#nanoTime()}
+         */
+        protected final long time = System.nanoTime();
+
+        protected Node(E item) { this.item = item; }
+    }
+
+
+    /**
+     * 带优先级的元素
+     */
+    public interface Prioritized {
+        /**
+         * 优先级 {@link #LOW}, {@link #NORMAL}, {@link #HIGH}
+         */
+        int priority();
+    }
+
+
+    /**
+     * 带优先级的任务: 提交到使用 {@link LaneQueue} 的线程池时按优先级排对
+     * @param fn 任务函数
+     * @param priority 优先级
+     * @return 带优先级的任务
+     */
+    public static Runnable prioritized(Runnable fn, int priority) {
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        return new PrioritizedRunnable(fn, priority);
+    }
+
+
+    protected static class PrioritizedRunnable implements Runnable, Prioritized {
+        protected final Runnable fn;
+        protected final int priority;
+
+        protected PrioritizedRunnable(Runnable fn, int priority) {
+            this.fn = fn;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() { fn.run(); }
+
+        @Override
+        public int priority() { return priority; }
+    }
+
+
+    @Override
+    public String toString() {
+        final int[] sizes = laneSizes();
+        return "LaneQueue{size: " + size() + ", high: " + sizes[HIGH] + ", normal: " + sizes[NORMAL] + ", low: " + sizes[LOW] + ", agingTime: " + agingTime / 1_000_000 + "ms}";
+    }
+}
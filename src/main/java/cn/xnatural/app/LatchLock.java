@@ -7,9 +7,9 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class LatchLock {
     /**
-     * 流量限制大小
+     * 流量限制大小. 运行时可被调整 {@link AdaptiveLimiter}
      */
-    protected int limit = 1;
+    protected volatile int limit = 1;
     /**
      * 当前并发大小
      */
@@ -55,12 +55,10 @@ public class LatchLock {
      * @return 释放后当前锁的个数
      */
     public int release() {
-        int latch = latchSize.get();
-        if (latch <= 0) return latch;
-        if (latchSize.compareAndSet(latch, latch - 1)) {
-            return latch - 1;
+        for (int latch = latchSize.get(); latch > 0; latch = latchSize.get()) {
+            if (latchSize.compareAndSet(latch, latch - 1)) return latch - 1;
         }
-        return latchSize.get();
+        return 0;
     }
 
 
@@ -68,4 +66,10 @@ public class LatchLock {
      * 当前已获取锁个数
      */
     public int getLatchSize() { return latchSize.get(); }
+
+
+    /**
+     * 当前流量限制大小
+     */
+    public int getLimit() { return limit; }
 }
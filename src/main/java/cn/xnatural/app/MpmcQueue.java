@@ -0,0 +1,260 @@
+package cn.xnatural.app;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 无锁有界多生产者多消费者对列(基于数组, Dmitry Vyukov bounded MPMC queue)
+ * 每个槽位有一个序号: 入对/出对 只 CAS 对列尾/头 的位置, 不加锁; 入对不创建节点对象
+ * 容量向上取2的幂. 先进先出, 不支持优先级 {@link LaneQueue}
+ * 实现了 {@link BlockingQueue}, 可以作为线程池的等待对列: 只在对列 空/满 需要等待时加锁
+ * <pre>
+ * MpmcQueue&lt;Runnable&gt; q = new MpmcQueue&lt;&gt;(65536);
+ * q.offer(fn);
+ * Runnable task = q.poll();
+ * </pre>
+ * @param <E> 元素类型
+ */
+public class MpmcQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+    /**
+     * 槽位
+     */
+    protected final AtomicReferenceArray<E> items;
+    /**
+     * 槽位序号: 等于入对位置时可入对, 等于入对位置+1时可出对
+     */
+    protected final AtomicLongArray sequences;
+    protected final int mask;
+    /**
+     * 入对位置(对列尾), 出对位置(对列头)
+     */
+    protected final AtomicLong tail = new AtomicLong(), head = new AtomicLong();
+    /**
+     * 阻塞等待 取/放 的锁
+     */
+    protected final ReentrantLock lock = new ReentrantLock();
+    protected final Condition notEmpty = lock.newCondition(), notFull = lock.newCondition();
+    /**
+     * 正在等待 取/放 的线程个数. 没有线程等待时 入对/出对 不加锁
+     */
+    protected final AtomicInteger takers = new AtomicInteger(), putters = new AtomicInteger();
+
+
+    /**
+     * 创建对列
+     * @param capacity 容量. 向上取2的幂
+     */
+    public MpmcQueue(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) throw new IllegalArgumentException("Param capacity 1 ~ 2^30");
+        final int size = capacity == 1 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.items = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) sequences.set(i, i);
+        this.mask = size - 1;
+    }
+
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) throw new NullPointerException();
+        for (;;) {
+            final long pos = tail.get();
+            final int idx = (int) (pos & mask);
+            final long diff = sequences.get(idx) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items.lazySet(idx, e);
+                    sequences.set(idx, pos + 1); // 发布: 消费者读到此序号后才读槽位
+                    if (takers.get() > 0) signal(notEmpty);
+                    return true;
+                }
+            } else if (diff < 0) return false; // 对列已满: 槽位还没被消费
+        }
+    }
+
+
+    @Override
+    public E poll() {
+        for (;;) {
+            final long pos = head.get();
+            final int idx = (int) (pos & mask);
+            final long diff = sequences.get(idx) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    final E e = items.get(idx);
+                    items.lazySet(idx, null);
+                    sequences.set(idx, pos + mask + 1); // 释放槽位给下一轮入对
+                    if (putters.get() > 0) signal(notFull);
+                    return e;
+                }
+            } else if (diff < 0) return null; // 对列为空(或者生产者已占位还没发布)
+        }
+    }
+
+
+    protected void signal(Condition condition) {
+        lock.lock();
+        try { condition.signal(); } finally { lock.unlock(); }
+    }
+
+
+    @Override
+    public E peek() {
+        for (;;) {
+            final long pos = head.get();
+            final int idx = (int) (pos & mask);
+            if (sequences.get(idx) - (pos + 1) < 0) return null;
+            final E e = items.get(idx);
+            if (head.get() == pos) return e; // 期间没有被取出
+        }
+    }
+
+
+    @Override
+    public E take() throws InterruptedException {
+        for (;;) {
+            final E e = poll();
+            if (e != null) return e;
+            lock.lockInterruptibly();
+            takers.incrementAndGet();
+            try {
+                // 先增加 takers 再检查 size: 入对的线程要么能看到 takers, 要么这里能看到 size
+                while (size() < 1) notEmpty.await();
+            } finally {
+                takers.decrementAndGet();
+                lock.unlock();
+            }
+        }
+    }
+
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (;;) {
+            final E e = poll();
+            if (e != null) return e;
+            long left = deadline - System.nanoTime();
+            if (left <= 0) return null;
+            lock.lockInterruptibly();
+            takers.incrementAndGet();
+            try {
+                while (size() < 1 && left > 0) left = notEmpty.awaitNanos(left);
+            } finally {
+                takers.decrementAndGet();
+                lock.unlock();
+            }
+        }
+    }
+
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        while (!offer(e)) {
+            lock.lockInterruptibly();
+            putters.incrementAndGet();
+            try {
+                while (remainingCapacity() < 1) notFull.await();
+            } finally {
+                putters.decrementAndGet();
+                lock.unlock();
+            }
+        }
+    }
+
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(e)) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) return false;
+            lock.lockInterruptibly();
+            putters.incrementAndGet();
+            try {
+                while (remainingCapacity() < 1 && left > 0) left = notFull.awaitNanos(left);
+            } finally {
+                putters.decrementAndGet();
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * 元素个数 O(1): 对列尾和对列头的位置差(包括已占位还没发布的)
+     */
+    @Override
+    public int size() {
+        for (;;) {
+            final long h = head.get();
+            final long t = tail.get();
+            if (head.get() == h) return (int) Math.max(0, Math.min(t - h, capacity()));
+        }
+    }
+
+
+    @Override
+    public boolean isEmpty() { return size() < 1; }
+
+
+    /**
+     * 容量(2的幂)
+     */
+    public int capacity() { return mask + 1; }
+
+
+    @Override
+    public int remainingCapacity() { return capacity() - size(); }
+
+
+    @Override
+    public int drainTo(Collection<? super E> c) { return drainTo(c, Integer.MAX_VALUE); }
+
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null) throw new NullPointerException();
+        if (c == this) throw new IllegalArgumentException();
+        int n = 0;
+        for (E e; n < maxElements && (e = poll()) != null; n++) c.add(e);
+        return n;
+    }
+
+
+    /**
+     * 不支持删除中间的元素(无锁数组对列)
+     * @return false
+     */
+    @Override
+    public boolean remove(Object o) { return false; }
+
+
+    /**
+     * 弱一致性的只读迭代器: 从对列头到对列尾
+     */
+    @Override
+    public Iterator<E> iterator() {
+        final List<E> ls = new ArrayList<>();
+        final long t = tail.get();
+        for (long pos = Math.max(head.get(), t - capacity()); pos < t; pos++) {
+            final E e = items.get((int) (pos & mask));
+            if (e != null) ls.add(e);
+        }
+        return Collections.unmodifiableList(ls).iterator();
+    }
+
+
+    @Override
+    public String toString() {
+        return "MpmcQueue{size: " + size() + ", capacity: " + capacity() + "}";
+    }
+}
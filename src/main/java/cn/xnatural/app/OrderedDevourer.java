@@ -0,0 +1,335 @@
+package cn.xnatural.app;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 保序并发对列执行器
+ * 任务最多 parallel 个并发执行, 但执行结果按入对顺序交给 {@link #consumer}
+ * 入对时给每个任务分配一个序号, 先执行完的结果暂存在重排缓冲区中, 等前面的结果都交出后再按序交出
+ * 已开始执行但结果还没交出的任务数不超过 {@link #window}(多个线程同时开始时可能略超出, 最多超出 parallel),
+ * 一个很慢的任务不会让缓冲区无限增长: 窗口满时暂停开始新任务
+ * 按key合并 {@link #offer(Object, Runnable)}: 合并的任务第一次入对时分配序号, 之后被合并(替换)的任务不再占序号
+ * 不支持: 失败重试(failMaxKeep, 会让后面所有结果等待), useLast(被清除的任务没有完成), 设置时抛出 {@link UnsupportedOperationException}
+ * <pre>
+ * OrderedDevourer&lt;Msg&gt; q = new OrderedDevourer&lt;Msg&gt;("enrich", exec).window(64)
+ *     .consumer(msg -&gt; send(msg)); // 按入对顺序发送
+ * q.parallel(8);
+ * q.offer(() -&gt; enrich(item));
+ * </pre>
+ * @param <R> 执行结果类型
+ */
+public class OrderedDevourer<R> extends Devourer {
+    /**
+     * 下一个入对任务的序号
+     */
+    protected long nextSeq;
+    /**
+     * 入对锁: 保证序号顺序和对列中的顺序一致
+     */
+    protected final Object offerLock = new Object();
+    /**
+     * 重排缓冲区: 已完成还没交出的任务. 序号 -> 任务
+     */
+    protected final Map<Long, Slot> buffer = new HashMap<>();
+    /**
+     * 下一个要交出的序号
+     */
+    protected long releaseSeq;
+    /**
+     * 是否有线程正在交出结果
+     */
+    protected boolean releasing;
+    /**
+     * 已开始执行但结果还没交出的任务数
+     */
+    protected final AtomicInteger inWindow = new AtomicInteger();
+    /**
+     * 窗口大小: 已开始执行但结果还没交出的任务数限制
+     */
+    protected int window = 64;
+    /**
+     * 按顺序接收执行结果的函数
+     */
+    protected Consumer<R> consumer;
+
+
+    /**
+     * 创建保序并发对列
+     * @param key 对列标识
+     * @param exec 线程池
+     */
+    public OrderedDevourer(String key, Executor exec) { super(key, exec); }
+
+    /**
+     * 创建保序并发对列
+     * @param key 对列标识
+     */
+    public OrderedDevourer(String key) { super(key); }
+
+
+    /**
+     * 有结果的任务入对列. 结果按入对顺序交给 {@link #consumer}
+     * @param fn 任务函数
+     * @return {@link OrderedDevourer}
+     */
+    public OrderedDevourer<R> offer(Callable<R> fn) {
+        if (fn == null) return this;
+        return offer(new Slot(fn), LaneQueue.NORMAL, null);
+    }
+
+
+    /**
+     * 没有结果的任务入对列. 按入对顺序完成, 不交给 {@link #consumer}
+     * @param fn 任务函数
+     * @return {@link OrderedDevourer}
+     */
+    @Override
+    public OrderedDevourer<R> offer(Runnable fn) {
+        if (fn == null) return this;
+        return offer(slot(fn), LaneQueue.NORMAL, null);
+    }
+
+
+    /**
+     * 保序对列忽略优先级, 按入对顺序执行
+     * 高优先级的任务先执行完也交不出结果(要等前面的低优先级任务), 窗口被占满后最老的任务也不能开始, 对列永远停止
+     */
+    @Override
+    public OrderedDevourer<R> offer(Runnable fn, int priority) {
+        if (fn == null) return this;
+        return offer(slot(fn), LaneQueue.NORMAL, null);
+    }
+
+
+    /**
+     * 有截止时间的任务入对列: 过期的任务不执行, 也按入对顺序完成
+     */
+    @Override
+    public OrderedDevourer<R> offer(Runnable fn, Deadline deadline) {
+        if (fn == null) return this;
+        return offer(slot(fn), LaneQueue.NORMAL, deadline);
+    }
+
+
+    protected Slot slot(Runnable fn) {
+        if (fn instanceof OrderedDevourer.Slot) throw new IllegalArgumentException("Slot already offered");
+        final Slot slot = new Slot(() -> { fn.run(); return null; }).noResult();
+        slot.origin = fn;
+        return slot;
+    }
+
+
+    /**
+     * 按key合并的任务入对列. 按入对顺序完成, 不交给 {@link #consumer}
+     * 合并的任务第一次入对时分配序号 {@link #enqueue(Runnable, int, Deadline)}, 之后同一个key的任务只替换任务函数
+     */
+    @Override
+    public OrderedDevourer<R> offer(Object key, Runnable fn) {
+        synchronized (offerLock) { // 序号顺序和对列中的顺序一致
+            super.offer(key, fn);
+        }
+        return this;
+    }
+
+
+    /**
+     * 按key合并的任务第一次入对时分配序号
+     */
+    @Override
+    protected boolean enqueue(Runnable fn, int priority, Deadline deadline) {
+        if (!(fn instanceof Devourer.Coalesced)) return super.enqueue(fn, priority, deadline);
+        final Slot slot = slot(fn);
+        slot.seq = nextSeq++;
+        try {
+            return super.enqueue(slot, LaneQueue.NORMAL, deadline);
+        } catch (RuntimeException ex) { // 对列满被拒绝: 已分配的序号也要完成
+            if (!slot.started) complete(slot);
+            throw ex;
+        }
+    }
+
+
+    protected OrderedDevourer<R> offer(Slot slot, int priority, Deadline deadline) {
+        lastUsed = System.nanoTime();
+        final boolean enqueued;
+        try {
+            synchronized (offerLock) {
+                slot.seq = nextSeq++;
+                enqueued = enqueue(slot, priority, deadline);
+            }
+        } catch (RuntimeException ex) { // 对列满被拒绝: 已分配的序号也要完成, 否则后面的结果一直交不出
+            if (!slot.started) complete(slot); // 已开始: CALLER_RUNS 执行失败, 已完成
+            throw ex;
+        }
+        if (enqueued) trigger();
+        return this;
+    }
+
+
+    /**
+     * 窗口满时不开始新任务
+     */
+    @Override
+    protected boolean ready() { return inWindow.get() < window; }
+
+
+    /**
+     * 被丢弃或过期的任务也要完成, 否则后面的结果一直交不出
+     */
+    @Override
+    protected void discard(Runnable fn) {
+        if (fn instanceof OrderedDevourer.Slot) {
+            final OrderedDevourer<?>.Slot slot = (OrderedDevourer<?>.Slot) fn;
+            super.discard(slot.origin == null ? slot : slot.origin); // 例: 取消 submit 的 future
+            slot.done();
+        } else super.discard(fn);
+    }
+
+
+    /**
+     * 任务完成(执行成功, 失败, 或被丢弃), 放入重排缓冲区, 交出能交出的结果
+     */
+    protected void complete(Slot slot) {
+        synchronized (buffer) {
+            buffer.put(slot.seq, slot);
+            if (releasing) return;
+            releasing = true;
+        }
+        boolean freed = false;
+        for (;;) {
+            final Slot next;
+            synchronized (buffer) {
+                next = buffer.remove(releaseSeq);
+                if (next == null) {
+                    releasing = false;
+                    break;
+                }
+                releaseSeq++;
+            }
+            if (next.started) {
+                inWindow.decrementAndGet();
+                freed = true;
+            }
+            if (next.hasResult && next.succeed && consumer != null) {
+                try {
+                    consumer.accept(next.result);
+                } catch (Throwable ex) {
+                    log.error(key + " consumer error", ex);
+                }
+            }
+        }
+        if (freed) trigger(); // 窗口有空位了
+    }
+
+
+    /**
+     * 对列中的一个任务
+     */
+    protected class Slot implements Runnable {
+        protected final Callable<R> fn;
+        /**
+         * 没有结果的任务的原任务函数
+         */
+        protected Runnable origin;
+        /**
+         * 序号
+         */
+        protected long seq;
+        protected boolean hasResult = true;
+        protected volatile boolean started;
+        protected boolean succeed;
+        protected R result;
+
+        protected Slot(Callable<R> fn) { this.fn = fn; }
+
+        protected Slot noResult() {
+            hasResult = false;
+            return this;
+        }
+
+        /**
+         * 完成(执行完或被丢弃) {@link #complete(Slot)}
+         */
+        protected void done() { complete(this); }
+
+        @Override
+        public void run() {
+            if (!started) {
+                started = true;
+                inWindow.incrementAndGet();
+            }
+            try {
+                result = fn.call();
+                succeed = true;
+            } catch (RuntimeException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            } finally {
+                done();
+            }
+        }
+    }
+
+
+    /**
+     * 设置窗口大小: 已开始执行但结果还没交出的任务数限制
+     * @param window >=1. 一般不小于 parallel
+     * @return {@link OrderedDevourer}
+     */
+    public OrderedDevourer<R> window(int window) {
+        if (window < 1) throw new IllegalArgumentException("Param window >= 1");
+        this.window = window;
+        trigger();
+        return this;
+    }
+
+
+    /**
+     * 设置按顺序接收执行结果的函数
+     * 执行失败的任务没有结果, 不交给此函数(错误由 {@link #errorHandle} 处理)
+     * @param consumer 结果接收函数
+     * @return {@link OrderedDevourer}
+     */
+    public OrderedDevourer<R> consumer(Consumer<R> consumer) {
+        this.consumer = consumer;
+        return this;
+    }
+
+
+    /**
+     * 失败重试会让后面所有结果等待, 不支持
+     */
+    @Override
+    public Devourer failMaxKeep(Integer maxKeep) {
+        if (maxKeep != null && maxKeep > 0) throw new UnsupportedOperationException("OrderedDevourer not support failMaxKeep");
+        return super.failMaxKeep(maxKeep);
+    }
+
+
+    /**
+     * 保序对列不支持 useLast: 被清除的任务没有完成
+     */
+    @Override
+    public Devourer useLast(boolean useLast) {
+        if (useLast) throw new UnsupportedOperationException("OrderedDevourer not support useLast");
+        return this;
+    }
+
+
+    /**
+     * 已开始执行但结果还没交出的任务数
+     */
+    public int getInWindow() { return inWindow.get(); }
+
+
+    @Override
+    public String toString() {
+        return key + "{parallel: " + getParallel() + ", limit: " + getLimit() + ", waitingCount: " + getWaitingCount() + ", inWindow: " + getInWindow() + ", window: " + window + ", suspended: "+ isSuspended() + "}";
+    }
+}
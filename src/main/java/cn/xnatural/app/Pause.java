@@ -1,6 +1,7 @@
 package cn.xnatural.app;
 
 import java.time.Duration;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -8,9 +9,9 @@ import java.time.Duration;
  */
 public class Pause {
     /**
-     * 开始时间
+     * 开始时间(单位: ns, {@link System#nanoTime()}, 不受系统时钟调整影响)
      */
-    protected long     start = System.currentTimeMillis();
+    protected long     start = System.nanoTime();
     /**
      * 暂停时长
      */
@@ -26,12 +27,19 @@ public class Pause {
      * 暂停时间是否已过
      * @return true: 时间已过
      */
-    public boolean isTimeout() { return left() < 0; }
+    public boolean isTimeout() { return leftNanos() <= 0; }
 
 
     /**
      * 剩余时长(单位:ms)
      * @return 小于等于0: 没有剩余时时, 大于0: 剩余时长
      */
-    public long left() { return (start + duration.toMillis()) - System.currentTimeMillis(); }
+    public long left() { return TimeUnit.NANOSECONDS.toMillis(leftNanos()); }
+
+
+    /**
+     * 剩余时长(单位:ns)
+     * @return 小于等于0: 没有剩余时时, 大于0: 剩余时长
+     */
+    public long leftNanos() { return duration.toNanos() - (System.nanoTime() - start); }
 }
@@ -0,0 +1,249 @@
+package cn.xnatural.app;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 分段流水线(SEDA)
+ * 每段一个对列({@link Stage}): 有各自的缓冲区大小和并发数, 上一段的结果交给下一段处理
+ * 背压: 下一段缓冲区快满时, 上一段暂停开始新任务(不占用线程等待), 下一段取走数据后再继续. 所以慢的一段不会让前面的段把内存撑满
+ * 第一段缓冲区满时 {@link #offer(Object)} 抛出 {@link RejectedExecutionException}
+ * <pre>
+ * Pipeline&lt;String, Void&gt; p = app().&lt;String&gt;pipeline("ingest")
+ *     .stage("parse", 4, line -&gt; parse(line))
+ *     .stage("enrich", 8, rec -&gt; enrich(rec))
+ *     .batchStage("persist", 2, 100, recs -&gt; { repo.batchSave(recs); return null; });
+ * p.offer(line);
+ * </pre>
+ * @param <I> 输入数据类型
+ * @param <O> 当前最后一段的输出数据类型
+ */
+public class Pipeline<I, O> {
+    /**
+     * 流水线名
+     */
+    protected final String name;
+    /**
+     * 线程池
+     */
+    protected final Executor exec;
+    /**
+     * 所有段
+     */
+    protected final List<Stage> stages = new CopyOnWriteArrayList<>();
+    /**
+     * 后面添加的段的缓冲区大小
+     */
+    protected int buffer = 1000;
+
+
+    /**
+     * 创建流水线
+     * @param name 流水线名
+     * @param exec 线程池
+     */
+    public Pipeline(String name, Executor exec) {
+        if (name == null || name.isEmpty()) throw new IllegalArgumentException("Param name required");
+        this.name = name;
+        this.exec = exec;
+    }
+
+
+    /**
+     * 设置后面添加的段的缓冲区大小
+     * @param size >=1
+     * @return {@link Pipeline}
+     */
+    public Pipeline<I, O> buffer(int size) {
+        if (size < 1) throw new IllegalArgumentException("Param size >= 1");
+        this.buffer = size;
+        return this;
+    }
+
+
+    /**
+     * 添加一段: 逐个处理
+     * @param stageName 段名
+     * @param parallel 并发数
+     * @param fn 处理函数. 返回null: 不交给下一段
+     * @return {@link Pipeline}
+     */
+    public <N> Pipeline<I, N> stage(String stageName, int parallel, Function<? super O, ? extends N> fn) {
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        return addStage(stageName, parallel, 1, ls -> fn.apply(ls.get(0)));
+    }
+
+
+    /**
+     * 添加一段: 批量处理
+     * 执行时从缓冲区中最多取 maxBatch 个一起处理. 下游慢时每批自然变大
+     * @param stageName 段名
+     * @param parallel 并发数
+     * @param maxBatch 每批最多个数
+     * @param fn 处理函数. 返回null: 不交给下一段
+     * @return {@link Pipeline}
+     */
+    public <N> Pipeline<I, N> batchStage(String stageName, int parallel, int maxBatch, Function<List<O>, ? extends N> fn) {
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        if (maxBatch < 1) throw new IllegalArgumentException("Param maxBatch >= 1");
+        return addStage(stageName, parallel, maxBatch, fn);
+    }
+
+
+    /**
+     * 添加一段
+     * 各段之间传递的数据不带类型(缓冲区是 Object), 上一段的输出类型(O)只由这里的泛型保证, 所以这里的转换是未检查的
+     * @param fn 处理函数: 一批上一段的输出 -&gt; 此段的输出
+     * @return 同一个流水线, 输出类型变为 N
+     */
+    @SuppressWarnings("unchecked")
+    protected <N> Pipeline<I, N> addStage(String stageName, int parallel, int maxBatch, Function<List<O>, ? extends N> fn) {
+        if (stageName == null || stageName.isEmpty()) throw new IllegalArgumentException("Param stageName required");
+        final Stage stage = new Stage(stageName, buffer, maxBatch, (Function<List<Object>, Object>) (Function<?, ?>) fn);
+        stage.parallel(parallel);
+        if (!stages.isEmpty()) {
+            final Stage last = stages.get(stages.size() - 1);
+            last.next = stage;
+            stage.prev = last;
+        }
+        stages.add(stage);
+        return (Pipeline<I, N>) this;
+    }
+
+
+    /**
+     * 数据进入流水线
+     * @param item 数据
+     * @return {@link Pipeline}
+     * @throws RejectedExecutionException 第一段缓冲区满
+     */
+    public Pipeline<I, O> offer(I item) {
+        if (stages.isEmpty()) throw new IllegalStateException("Pipeline '" + name + "' has no stage");
+        if (item == null) return this;
+        final Stage head = stages.get(0);
+        if (head.itemCount.get() >= head.buffer) {
+            head.rejected.increment();
+            throw new RejectedExecutionException("Pipeline '" + name + "' is full(" + head.buffer + ")");
+        }
+        head.accept(item);
+        return this;
+    }
+
+
+    /**
+     * 流水线中的一段
+     */
+    protected class Stage extends Devourer {
+        protected final String stageName;
+        /**
+         * 缓冲区
+         */
+        protected final Queue<Object> items = new ConcurrentLinkedQueue<>();
+        protected final AtomicInteger itemCount = new AtomicInteger();
+        /**
+         * 缓冲区大小
+         */
+        protected final int buffer;
+        /**
+         * 每批最多个数
+         */
+        protected final int maxBatch;
+        /**
+         * 处理函数
+         */
+        protected final Function<List<Object>, Object> fn;
+        /**
+         * 统计: 处理的数据个数
+         */
+        protected final LongAdder processed = new LongAdder();
+        protected volatile Stage prev, next;
+
+        protected Stage(String stageName, int buffer, int maxBatch, Function<List<Object>, Object> fn) {
+            super(Pipeline.this.name + "." + stageName, Pipeline.this.exec);
+            this.stageName = stageName;
+            this.buffer = buffer;
+            this.maxBatch = maxBatch;
+            this.fn = fn;
+        }
+
+        /**
+         * 数据进入此段
+         */
+        protected void accept(Object item) {
+            items.offer(item);
+            itemCount.incrementAndGet();
+            offer(this::process);
+        }
+
+        /**
+         * 处理一批数据, 结果交给下一段
+         */
+        protected void process() {
+            final List<Object> ls = new ArrayList<>(Math.min(maxBatch, 16));
+            for (Object item = null; ls.size() < maxBatch && (item = items.poll()) != null; ) {
+                ls.add(item);
+            }
+            if (ls.isEmpty()) return;
+            itemCount.addAndGet(-ls.size());
+            final Stage p = prev;
+            if (p != null && p.getWaitingCount() > 0) p.trigger(); // 缓冲区有空位了, 上一段继续
+            processed.add(ls.size());
+            final Object result = fn.apply(ls);
+            final Stage n = next;
+            if (result != null && n != null) n.accept(result);
+        }
+
+        /**
+         * 背压: 下一段的缓冲区 加上 此段执行中的任务(每个最多产生一个结果) 不超过下一段的缓冲区大小
+         */
+        @Override
+        protected boolean ready() {
+            final Stage n = next;
+            return n == null || n.itemCount.get() + getParallel() < n.buffer;
+        }
+
+        @Override
+        public Map<String, Object> stats() {
+            final Map<String, Object> data = super.stats();
+            data.put("itemCount", itemCount.get());
+            data.put("processed", processed.sum());
+            return data;
+        }
+    }
+
+
+    /**
+     * 各段的统计快照 {@link Devourer#stats()}
+     * itemCount: 缓冲区中的数据个数; processed: 处理的数据个数
+     * @return 段名 -&gt; 统计数据
+     */
+    public Map<String, Object> stats() {
+        final Map<String, Object> data = new LinkedHashMap<>();
+        for (Stage stage : stages) data.put(stage.stageName, stage.stats());
+        return data;
+    }
+
+
+    public String getName() { return name; }
+
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(name).append("[");
+        for (Stage stage : stages) {
+            if (stage.prev != null) sb.append(" -> ");
+            sb.append(stage.stageName).append("{parallel: ").append(stage.getParallel()).append(", itemCount: ").append(stage.itemCount.get()).append("}");
+        }
+        return sb.append("]").toString();
+    }
+}
@@ -6,10 +6,16 @@ import cn.xnatural.enet.event.EP;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 /**
@@ -110,20 +116,195 @@ public class ServerTpl {
      * @param fn 异步执行的函数
      * @param exFn 错误处理函数
      */
-    public ServerTpl async(Runnable fn, Consumer<Throwable> exFn) {
-        _exec.get().execute(() -> {
+    public ServerTpl async(Runnable fn, Consumer<Throwable> exFn) { return async(fn, LaneQueue.NORMAL, exFn); }
+    /**
+     * 异步执行. 拦截异常
+     * @param fn 异步执行的函数
+     */
+    public ServerTpl async(Runnable fn) { return async(fn, LaneQueue.NORMAL, null); }
+    /**
+     * 按优先级异步执行. 拦截异常
+     * 系统线程池繁忙时, 等待中的高优先级任务先执行. 低优先级的任务等待越久优先级越高(sys.exec.agingTime), 不会一直等待
+     * @param fn 异步执行的函数
+     * @param priority 优先级 {@link LaneQueue#LOW}, {@link LaneQueue#NORMAL}(默认), {@link LaneQueue#HIGH}
+     */
+    public ServerTpl async(Runnable fn, int priority) { return async(fn, priority, null); }
+    /**
+     * 按优先级异步执行. 拦截异常
+     * 开启准入控制(sys.exec.codel.enabled)时, 系统线程池过载会拒绝低优先级的任务: 交给 exFn 处理, 没有 exFn 则抛出 {@link RejectedExecutionException}
+     * @param fn 异步执行的函数
+     * @param priority 优先级 {@link LaneQueue#LOW}, {@link LaneQueue#NORMAL}(默认), {@link LaneQueue#HIGH}
+     * @param exFn 错误处理函数
+     */
+    public ServerTpl async(Runnable fn, int priority, Consumer<Throwable> exFn) {
+        final Runnable task = () -> {
             try {fn.run();} catch (Throwable ex) {
                 if (exFn != null) exFn.accept(ex);
                 else log.error("", ex);
             }
-        });
+        };
+        try {
+            _exec.get().execute(LaneQueue.prioritized(task, priority));
+        } catch (RejectedExecutionException ex) {
+            if (exFn == null) throw ex;
+            exFn.accept(ex);
+        }
         return this;
     }
     /**
-     * 异步执行. 拦截异常
+     * 有截止时间的异步执行. 拦截异常
+     * 开始执行前已过截止时间或已取消: 不执行(系统线程池统计为 expired); 执行中可通过 {@link Deadline#checkpoint()} 看到取消标记
+     * @param fn 异步执行的函数
+     * @param deadline 截止时间
+     */
+    public ServerTpl async(Runnable fn, Deadline deadline) {
+        if (deadline == null) return async(fn);
+        _exec.get().execute(deadline.bind(() -> {
+            try {fn.run();} catch (Throwable ex) {
+                log.error("", ex);
+            }
+        }, LaneQueue.NORMAL, null));
+        return this;
+    }
+    /**
+     * 异步执行, 返回结果
+     * 返回的 {@link CompletableFuture} 在系统线程池的线程中完成, 依赖它的非Async阶段(thenApply, thenCompose...)直接在该线程中执行, 不再切换线程
+     * 需要Async阶段时传入系统线程池: thenApplyAsync(fn, exec()), 避免使用 {@link java.util.concurrent.ForkJoinPool#commonPool()}
+     * 并行多个IO: {@link #allOf(Duration, CompletableFuture[])}
+     * @param fn 异步执行的函数
+     * @return {@link CompletableFuture}
+     */
+    public <T> CompletableFuture<T> asyncCall(Callable<T> fn) { return asyncCall(fn, LaneQueue.NORMAL); }
+    /**
+     * 按优先级异步执行, 返回结果 {@link #asyncCall(Callable)}
+     * @param fn 异步执行的函数
+     * @param priority 优先级 {@link LaneQueue#LOW}, {@link LaneQueue#NORMAL}(默认), {@link LaneQueue#HIGH}
+     * @return {@link CompletableFuture}
+     */
+    public <T> CompletableFuture<T> asyncCall(Callable<T> fn, int priority) { return asyncCall(fn, priority, null); }
+    /**
+     * 有截止时间的异步执行, 返回结果 {@link #asyncCall(Callable)}
+     * 开始执行前已过截止时间或已取消: 不执行, future 被取消
+     * @param fn 异步执行的函数
+     * @param deadline 截止时间
+     * @return {@link CompletableFuture}
+     */
+    public <T> CompletableFuture<T> asyncCall(Callable<T> fn, Deadline deadline) { return asyncCall(fn, LaneQueue.NORMAL, deadline); }
+    /**
+     * 按优先级, 有截止时间的异步执行, 返回结果 {@link #asyncCall(Callable)}
+     * 系统线程池过载拒绝时(sys.exec.codel.enabled), future 以 {@link RejectedExecutionException} 完成
      * @param fn 异步执行的函数
+     * @param priority 优先级 {@link LaneQueue#LOW}, {@link LaneQueue#NORMAL}(默认), {@link LaneQueue#HIGH}
+     * @param deadline 截止时间. 可为null
+     * @return {@link CompletableFuture}
      */
-    public ServerTpl async(Runnable fn) { return async(fn, null); }
+    public <T> CompletableFuture<T> asyncCall(Callable<T> fn, int priority, Deadline deadline) {
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final Runnable task = () -> {
+            try {
+                future.complete(fn.call());
+            } catch (Throwable ex) {
+                future.completeExceptionally(ex);
+            }
+        };
+        try {
+            _exec.get().execute(deadline == null ? LaneQueue.prioritized(task, priority) : deadline.bind(task, priority, () -> future.cancel(false)));
+        } catch (RejectedExecutionException ex) {
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+
+    /**
+     * 等待所有 future 完成(有时间预算)
+     * 不占用线程等待: 超时由定时器触发, 在系统线程池中以 {@link TimeoutException} 完成
+     * <pre>
+     * CompletableFuture&lt;User&gt; user = asyncCall(() -&gt; userApi.get(id));
+     * CompletableFuture&lt;Order&gt; order = asyncCall(() -&gt; orderApi.get(id));
+     * allOf(Duration.ofMillis(300), user, order).thenAccept(ls -&gt; ...);
+     * </pre>
+     * @param timeout 时间预算. 超时后未完成的 future 不会被取消
+     * @param futures 多个 future
+     * @return 按参数顺序的所有结果. 任意一个失败时立即以其异常完成
+     */
+    @SafeVarargs
+    public final <T> CompletableFuture<List<T>> allOf(Duration timeout, CompletableFuture<? extends T>... futures) {
+        final List<CompletableFuture<? extends T>> ls = new ArrayList<>(futures.length);
+        for (CompletableFuture<? extends T> f : futures) ls.add(f); // 不把 varargs 数组传出去: 避免 heap pollution 警告
+        return allOf(timeout, ls);
+    }
+    /**
+     * 等待所有 future 完成(有时间预算) {@link #allOf(Duration, CompletableFuture[])}
+     * @param timeout 时间预算. null: 不限时
+     * @param futures 多个 future
+     * @return 按参数顺序的所有结果
+     */
+    public <T> CompletableFuture<List<T>> allOf(Duration timeout, Collection<? extends CompletableFuture<? extends T>> futures) {
+        final CompletableFuture<List<T>> result = new CompletableFuture<>();
+        final List<CompletableFuture<? extends T>> ls = new ArrayList<>(futures);
+        final AtomicInteger left = new AtomicInteger(ls.size());
+        if (ls.isEmpty()) result.complete(new ArrayList<>(0));
+        for (CompletableFuture<? extends T> f : ls) {
+            f.whenComplete((v, ex) -> {
+                if (ex != null) result.completeExceptionally(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+                else if (left.decrementAndGet() == 0) {
+                    final List<T> values = new ArrayList<>(ls.size());
+                    for (CompletableFuture<? extends T> ff : ls) values.add(ff.join());
+                    result.complete(values);
+                }
+            });
+        }
+        if (timeout != null && !result.isDone()) {
+            // 定时器线程不能执行后续阶段, 交给线程池
+            final WheelTimer.Timeout t = Devourer.timer.get().schedule(() ->
+                    result.completeExceptionally(new TimeoutException("allOf timeout " + timeout.toMillis() + "ms, unfinished: " + left.get())),
+                    timeout.toNanos(), TimeUnit.NANOSECONDS, _exec.get());
+            result.whenComplete((v, ex) -> t.cancel());
+        }
+        return result;
+    }
+
+
+    /**
+     * 在阻塞线程池中执行(JDBC, http, 文件 等阻塞调用) {@link AppContext#blockingExec()}
+     * 不占用系统线程池的线程: 系统线程池按CPU配置, 少量线程即可
+     * 返回的 {@link CompletableFuture} 在阻塞线程池的线程中完成, 后续计算切回系统线程池: thenApplyAsync(fn, exec())
+     * <pre>
+     * blocking(() -&gt; db.rows("select * from test")).thenAcceptAsync(ls -&gt; ..., exec());
+     * </pre>
+     * @param fn 阻塞函数
+     * @return {@link CompletableFuture}
+     */
+    public <T> CompletableFuture<T> blocking(Callable<T> fn) {
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            _app.get().blockingExec().execute(() -> {
+                try {
+                    future.complete(fn.call());
+                } catch (Throwable ex) {
+                    future.completeExceptionally(ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+    /**
+     * 在阻塞线程池中执行 {@link #blocking(Callable)}
+     * @param fn 阻塞函数
+     * @return {@link CompletableFuture}
+     */
+    public CompletableFuture<Void> blocking(Runnable fn) {
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        return blocking(() -> {
+            fn.run();
+            return null;
+        });
+    }
 
 
     /**
@@ -145,6 +326,18 @@ public class ServerTpl {
      * @return {@link Devourer}当前对列
      */
     public Devourer queue(Runnable fn) { return _app.get().queue(name, fn); }
+    /**
+     * 获取按key分组的对列执行器
+     * @param qName 对列名
+     * @return {@link KeyedDevourer}
+     */
+    public KeyedDevourer keyedQueue(String qName) { return _app.get().keyedQueue(qName); }
+    /**
+     * 获取分段流水线
+     * @param pName 流水线名
+     * @return {@link Pipeline}
+     */
+    public <T> Pipeline<T, T> pipeline(String pName) { return _app.get().pipeline(pName); }
 
 
     /**
@@ -197,13 +390,13 @@ public class ServerTpl {
 
 
     /**
-     * 设置属性
+     * 设置属性. 重新加载配置 {@link AppContext#reloadEnv()} 后仍然有效
      * @param aName 属性名
      * @param aValue 属性值
      * @return {@link ServerTpl}
      */
     public ServerTpl setAttr(String aName, Object aValue) {
-        app().env().put(name+ "." +aName, aValue);
+        app().setAttr(name+ "." +aName, aValue);
         return this;
     }
 
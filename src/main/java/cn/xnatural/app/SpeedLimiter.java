@@ -0,0 +1,106 @@
+package cn.xnatural.app;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 速度限制器
+ * GCRA(通用信元速率算法), 效果等同于令牌桶: 平均速度不超过限制, 允许一定个数的突发
+ * 不会阻塞线程: {@link #tryAcquire()} 只返回还需等待的时长, 由调用方决定何时重试
+ * <pre>
+ * SpeedLimiter limiter = SpeedLimiter.of("20/s", 5);
+ * long wait = limiter.tryAcquire();
+ * if (wait > 0) {
+ *     // 延迟 wait 纳秒后再试
+ * }
+ * </pre>
+ */
+public class SpeedLimiter {
+    /**
+     * 每个许可的间隔时长(单位: ns)
+     */
+    protected final long interval;
+    /**
+     * 允许突发的个数
+     */
+    protected final int burst;
+    /**
+     * 突发容忍时长(单位: ns)
+     */
+    protected final long tolerance;
+    /**
+     * 理论到达时间(单位: ns). 即: 下一个许可按平均速度应该被发放的时间点
+     */
+    protected final AtomicLong tat = new AtomicLong(System.nanoTime());
+
+
+    /**
+     * 创建速度限制器
+     * @param interval 每个许可的间隔时长(单位: ns)
+     * @param burst 允许突发的个数 >=1
+     */
+    public SpeedLimiter(long interval, int burst) {
+        if (interval < 1) throw new IllegalArgumentException("Param interval must > 0");
+        if (burst < 1) throw new IllegalArgumentException("Param burst must >= 1");
+        this.interval = interval;
+        this.burst = burst;
+        this.tolerance = interval * (burst - 1);
+    }
+
+
+    /**
+     * 创建速度限制器
+     * @param speed /s, /m, /h, /d. 例: 20/s
+     * @param burst 允许突发的个数 >=1
+     * @return {@link SpeedLimiter}
+     */
+    public static SpeedLimiter of(String speed, int burst) {
+        if (speed == null) throw new IllegalArgumentException("Param speed required");
+        String[] arr = speed.split("/");
+        if (arr.length != 2) throw new IllegalArgumentException("speed format 10/s, 10/m, 10/h, 10/d");
+        // 速度大小
+        final int limit = Integer.valueOf(arr[0].trim());
+        if (limit < 1) throw new IllegalArgumentException("speed must > 0");
+        // 速度单位
+        final String unit = arr[1].trim().toLowerCase();
+        if (!Arrays.asList("s", "m", "h", "d").contains(unit)) {
+            throw new IllegalArgumentException("speed format 10/s, 10/m, 10/h, 10/d");
+        }
+        // 单位时间长
+        long unitDuration = 0;
+        if ("s".equals(unit)) unitDuration = TimeUnit.SECONDS.toNanos(1);
+        else if ("m".equals(unit)) unitDuration = TimeUnit.MINUTES.toNanos(1);
+        else if ("h".equals(unit)) unitDuration = TimeUnit.HOURS.toNanos(1);
+        else if ("d".equals(unit)) unitDuration = TimeUnit.DAYS.toNanos(1);
+        return new SpeedLimiter(unitDuration / limit, burst);
+    }
+
+
+    /**
+     * 尝试获取一个许可
+     * @return 0: 获取成功; 大于0: 获取失败, 还需等待的时长(单位: ns)
+     */
+    public long tryAcquire() {
+        for (;;) {
+            final long now = System.nanoTime();
+            final long t = tat.get();
+            final long base = t - now > 0 ? t : now;
+            final long wait = base - tolerance - now;
+            if (wait > 0) return wait;
+            if (tat.compareAndSet(t, base + interval)) return 0;
+        }
+    }
+
+
+    /**
+     * 允许突发的个数
+     */
+    public int getBurst() { return burst; }
+
+
+    @Override
+    public String toString() {
+        return "SpeedLimiter{interval: " + interval + "ns, burst: " + burst + "}";
+    }
+}
@@ -0,0 +1,272 @@
+package cn.xnatural.app;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 时间轮定时器(hashed wheel)
+ * 一个后台线程每 tick 时长转动一格, 执行这一格中到期的定时任务. 添加/取消定时任务都是 O(1)
+ * 没有定时任务时线程挂起不转动
+ * NOTE: 定时任务在定时器线程中执行, 只能做很快的事(例如: 把任务提交到线程池), 不能阻塞
+ * 需要执行业务代码时使用 {@link #schedule(Runnable, long, TimeUnit, Executor)}: 到期时只把任务交给线程池
+ * 精度为一个 tick: 到期时间向后取整到 tick
+ * <pre>
+ * WheelTimer timer = new WheelTimer("timer", Duration.ofMillis(1), 1024);
+ * WheelTimer.Timeout timeout = timer.schedule(fn, 3, TimeUnit.SECONDS, exec);
+ * timeout.cancel();
+ * </pre>
+ */
+public class WheelTimer {
+    protected static final Logger log = LoggerFactory.getLogger(WheelTimer.class);
+    /**
+     * 每格时长(单位: ns)
+     */
+    protected final long tick;
+    /**
+     * 时间轮. 只在 {@link #worker} 线程中操作
+     */
+    protected final List<List<Timeout>> wheel;
+    protected final int mask;
+    /**
+     * 新添加的还没放到时间轮上的定时任务
+     */
+    protected final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    /**
+     * 未到期(未取消)的定时任务个数
+     */
+    protected final AtomicInteger count = new AtomicInteger();
+    /**
+     * 起始时间点
+     */
+    protected final long startTime = System.nanoTime();
+    /**
+     * 已转动的格数
+     */
+    protected long ticks;
+    protected final Thread worker;
+    protected volatile boolean stopped;
+    /**
+     * 到期交给线程池被拒绝时, 重新提交的间隔(单位: ns)
+     */
+    protected long handoffRetry = TimeUnit.MILLISECONDS.toNanos(10);
+
+
+    /**
+     * 创建时间轮定时器
+     * @param name 线程名
+     * @param tick 每格时长
+     * @param wheelSize 格数, 会调整为2的幂
+     */
+    public WheelTimer(String name, Duration tick, int wheelSize) {
+        if (tick == null || tick.toNanos() < 1) throw new IllegalArgumentException("Param tick > 0");
+        if (wheelSize < 1) throw new IllegalArgumentException("Param wheelSize >= 1");
+        this.tick = tick.toNanos();
+        int size = 1;
+        while (size < wheelSize) size <<= 1;
+        this.wheel = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) wheel.add(new ArrayList<>());
+        this.mask = size - 1;
+        this.worker = new Thread(this::work, name == null ? "wheel-timer" : name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+
+    /**
+     * 添加定时任务
+     * @param fn 到期时执行的函数
+     * @param delay 延迟时长
+     * @param unit 时长单位
+     * @return {@link Timeout}
+     */
+    public Timeout schedule(Runnable fn, long delay, TimeUnit unit) {
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        if (stopped) throw new IllegalStateException("Timer stopped");
+        final Timeout timeout = new Timeout(fn, System.nanoTime() - startTime + Math.max(0, unit.toNanos(delay)));
+        pending.offer(timeout);
+        if (count.getAndIncrement() == 0) LockSupport.unpark(worker);
+        return timeout;
+    }
+
+
+    /**
+     * 添加定时任务
+     * @param fn 到期时执行的函数
+     * @param delay 延迟时长
+     * @return {@link Timeout}
+     */
+    public Timeout schedule(Runnable fn, Duration delay) { return schedule(fn, delay.toNanos(), TimeUnit.NANOSECONDS); }
+
+
+    /**
+     * 添加定时任务: 到期时把 fn 交给线程池执行, 定时器线程中不执行 fn
+     * 线程池拒绝(或者拒绝策略 CallerRunsPolicy 把 fn 退回到定时器线程执行)时, 等 {@link #handoffRetry} 后再交给线程池
+     * fn 实现 {@link LaneQueue.Prioritized} 时保持其优先级
+     * @param fn 到期时执行的函数
+     * @param delay 延迟时长
+     * @param unit 时长单位
+     * @param exec 执行 fn 的线程池
+     * @return {@link Timeout}. 取消只对第一次到期有效
+     */
+    public Timeout schedule(Runnable fn, long delay, TimeUnit unit, Executor exec) {
+        if (fn == null) throw new IllegalArgumentException("Param fn required");
+        if (exec == null) throw new IllegalArgumentException("Param exec required");
+        return schedule(() -> handoff(fn, exec), delay, unit);
+    }
+
+
+    /**
+     * 把 fn 交给线程池执行. 在定时器线程中调用
+     */
+    protected void handoff(Runnable fn, Executor exec) {
+        final Runnable task = () -> {
+            if (Thread.currentThread() == worker) { // 被拒绝策略退回到定时器线程执行
+                retryHandoff(fn, exec);
+                return;
+            }
+            fn.run();
+        };
+        try {
+            exec.execute(fn instanceof LaneQueue.Prioritized ? LaneQueue.prioritized(task, ((LaneQueue.Prioritized) fn).priority()) : task);
+        } catch (RejectedExecutionException ex) {
+            retryHandoff(fn, exec);
+        }
+    }
+
+
+    /**
+     * 等 {@link #handoffRetry} 后再交给线程池
+     */
+    protected void retryHandoff(Runnable fn, Executor exec) {
+        if (stopped) return;
+        log.debug("{} handoff rejected, retry after {}ms", worker.getName(), handoffRetry / 1_000_000);
+        schedule(() -> handoff(fn, exec), handoffRetry, TimeUnit.NANOSECONDS);
+    }
+
+
+    /**
+     * 定时器线程: 每 tick 转动一格
+     */
+    protected void work() {
+        while (!stopped) {
+            if (count.get() < 1) { // 没有定时任务, 挂起等待
+                LockSupport.park(this);
+                ticks = Math.max(ticks, (System.nanoTime() - startTime) / tick);
+                continue;
+            }
+            // 等到这一格的结束时间
+            final long deadline = (ticks + 1) * tick;
+            for (long left = deadline - (System.nanoTime() - startTime); left > 0 && !stopped; left = deadline - (System.nanoTime() - startTime)) {
+                LockSupport.parkNanos(this, left);
+            }
+            transfer();
+            expire(wheel.get((int) (ticks & mask)), deadline);
+            ticks++;
+        }
+    }
+
+
+    /**
+     * 把新添加的定时任务放到时间轮上
+     */
+    protected void transfer() {
+        for (Timeout timeout = pending.poll(); timeout != null; timeout = pending.poll()) {
+            if (timeout.state.get() != Timeout.INIT) continue;
+            final long calculated = timeout.deadline / tick;
+            timeout.rounds = (calculated - ticks) / wheel.size();
+            wheel.get((int) (Math.max(calculated, ticks) & mask)).add(timeout);
+        }
+    }
+
+
+    /**
+     * 执行一格中到期的定时任务
+     */
+    protected void expire(List<Timeout> bucket, long deadline) {
+        for (Iterator<Timeout> it = bucket.iterator(); it.hasNext(); ) {
+            final Timeout timeout = it.next();
+            if (timeout.state.get() != Timeout.INIT) it.remove();
+            else if (timeout.rounds <= 0 && timeout.deadline <= deadline) {
+                it.remove();
+                if (!timeout.state.compareAndSet(Timeout.INIT, Timeout.EXPIRED)) continue;
+                count.decrementAndGet();
+                try {
+                    timeout.fn.run();
+                } catch (Throwable ex) {
+                    log.error(worker.getName() + " task error", ex);
+                }
+            } else timeout.rounds--;
+        }
+    }
+
+
+    /**
+     * 停止定时器. 未到期的定时任务不再执行
+     */
+    public void stop() {
+        stopped = true;
+        LockSupport.unpark(worker);
+    }
+
+
+    /**
+     * 未到期的定时任务个数
+     */
+    public int getCount() { return count.get(); }
+
+
+    /**
+     * 定时任务
+     */
+    public class Timeout {
+        protected static final int INIT = 0, CANCELLED = 1, EXPIRED = 2;
+        protected final Runnable fn;
+        /**
+         * 到期时间(相对于 {@link #startTime}, 单位: ns)
+         */
+        protected final long deadline;
+        /**
+         * 还需转几圈. 只在 {@link #worker} 线程中操作
+         */
+        protected long rounds;
+        protected final AtomicInteger state = new AtomicInteger(INIT);
+
+        protected Timeout(Runnable fn, long deadline) {
+            this.fn = fn;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 取消
+         * @return false: 已到期或已取消
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(INIT, CANCELLED)) return false;
+            count.decrementAndGet();
+            return true;
+        }
+
+        /**
+         * 是否已到期执行
+         */
+        public boolean isExpired() { return state.get() == EXPIRED; }
+    }
+
+
+    @Override
+    public String toString() {
+        return "WheelTimer@" + worker.getName() + "{count: " + getCount() + ", tick: " + tick / 1000 + "us, wheelSize: " + wheel.size() + "}";
+    }
+}
@@ -1,5 +1,7 @@
 package cn.xnatural.app.util;
 
+import cn.xnatural.app.Blocking;
+
 import javax.sql.DataSource;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
@@ -126,26 +128,29 @@ public class DB implements AutoCloseable {
 
     /**
      * 执行连接
+     * 阻塞调用: 在系统线程池中执行时, 阻塞期间线程池临时增加一个线程 {@link Blocking}
      * @param fn 函数
      * @return {@link DB}
      */
     public <T> T withConn(Function<Connection, T> fn) {
         init();
-        Connection conn = null;
-        try {
-            conn = txConn.get() == null ? dataSource.getConnection() : txConn.get();
-            return fn.apply(conn);
-        } catch (SQLException ex) {
-            throw new RuntimeException(ex);
-        } finally {
-            if (txConn.get() == null) { // 证明当前线程没有事务, 需要直接释放连接
-                try {
-                    conn.close();
-                } catch (SQLException ex) {
-                    throw new RuntimeException(ex);
+        return Blocking.managed(() -> {
+            Connection conn = null;
+            try {
+                conn = txConn.get() == null ? dataSource.getConnection() : txConn.get();
+                return fn.apply(conn);
+            } catch (SQLException ex) {
+                throw new RuntimeException(ex);
+            } finally {
+                if (txConn.get() == null) { // 证明当前线程没有事务, 需要直接释放连接
+                    try {
+                        conn.close();
+                    } catch (SQLException ex) {
+                        throw new RuntimeException(ex);
+                    }
                 }
             }
-        }
+        });
     }
 
 
@@ -1,5 +1,6 @@
 package cn.xnatural.app.util;
 
+import cn.xnatural.app.Blocking;
 import cn.xnatural.app.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -101,9 +102,17 @@ public class Httper {
 
     /**
      * 执行 http 请求
+     * 阻塞调用: 在系统线程池中执行时, 阻塞期间线程池临时增加一个线程 {@link Blocking}
      * @return http请求结果
      */
-    public String execute() {
+    public String execute() { return Blocking.managed(this::doExecute); }
+
+
+    /**
+     * 执行 http 请求
+     * @return http请求结果
+     */
+    protected String doExecute() {
         String ret = null;
         HttpURLConnection conn = null;
         boolean isMulti = false; // 是否为 multipart/form-data 提交
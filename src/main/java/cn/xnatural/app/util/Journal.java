@@ -0,0 +1,268 @@
+package cn.xnatural.app.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 只追加日志文件(内存映射)
+ * 数据按顺序追加到段文件(name-序号.seg)中, 一个段写满后写下一个段. 读位置保存在 name.pos 文件中, 重启后从读位置继续读
+ * 一个段中的数据全部被确认({@link #ack()})后, 删除这个段文件
+ * 记录格式: [int 长度][数据]. 长度为0: 已写数据的结尾; 长度为-1: 此段已写满, 转到下一段
+ * NOTE: 数据写到内存映射中即可在进程崩溃后恢复, 操作系统崩溃/断电时可能丢失还没刷盘的数据
+ * <pre>
+ * Journal journal = new Journal(new File("./data"), "report", 64 * 1024 * 1024);
+ * journal.append(bytes);
+ * byte[] bs = journal.peek();
+ * // 处理成功后确认
+ * journal.ack();
+ * </pre>
+ */
+public class Journal implements AutoCloseable {
+    protected static final Logger log = LoggerFactory.getLogger(Journal.class);
+    /**
+     * 文件目录
+     */
+    protected final File dir;
+    /**
+     * 名字, 段文件名前缀
+     */
+    protected final String name;
+    /**
+     * 段文件大小
+     */
+    protected final int segmentSize;
+    /**
+     * 段文件名格式
+     */
+    protected final Pattern segPattern;
+    /**
+     * 读位置: [long 读段序号][int 段内读位置]
+     */
+    protected MappedByteBuffer posBuf;
+    /**
+     * 当前写段
+     */
+    protected long writeSeg;
+    protected MappedByteBuffer writeBuf;
+    protected int writePos;
+    /**
+     * 当前读段
+     */
+    protected long readSeg;
+    protected MappedByteBuffer readBuf;
+    protected int readPos;
+    /**
+     * 上次 {@link #peek()} 的记录长度. -1: 没有可确认的记录
+     */
+    protected int peekLen = -1;
+    /**
+     * 未确认的记录个数
+     */
+    protected long count;
+
+
+    /**
+     * 打开日志. 如果已存在, 从上次的读位置恢复
+     * @param dir 文件目录
+     * @param name 名字
+     * @param segmentSize 段文件大小(单位: byte)
+     */
+    public Journal(File dir, String name, int segmentSize) {
+        if (dir == null) throw new IllegalArgumentException("Param dir required");
+        if (name == null || name.isEmpty()) throw new IllegalArgumentException("Param name required");
+        if (segmentSize < 1024) throw new IllegalArgumentException("Param segmentSize >= 1024");
+        this.dir = dir;
+        this.name = name;
+        this.segmentSize = segmentSize;
+        this.segPattern = Pattern.compile(Pattern.quote(name) + "-(\\d+)\\.seg");
+        try {
+            open();
+        } catch (IOException ex) {
+            throw new RuntimeException("Open journal '" + name + "' error", ex);
+        }
+    }
+
+
+    /**
+     * 打开并恢复
+     */
+    protected void open() throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("Create dir '" + dir.getAbsolutePath() + "' fail");
+        posBuf = map(new File(dir, name + ".pos"), 12);
+        readSeg = posBuf.getLong(0);
+        readPos = posBuf.getInt(8);
+        // 已存在的段
+        long[] segs = Arrays.stream(dir.list() == null ? new String[0] : dir.list())
+                .map(segPattern::matcher).filter(Matcher::matches)
+                .mapToLong(m -> Long.parseLong(m.group(1))).sorted().toArray();
+        for (long seg : segs) { // 删除已读完的段
+            if (seg < readSeg) delete(seg);
+        }
+        segs = Arrays.stream(segs).filter(seg -> seg >= readSeg).toArray();
+        if (segs.length > 0 && segs[0] > readSeg) { // 读位置的段已不存在
+            log.warn("Journal '{}' segment {} missing, read from segment {}", name, readSeg, segs[0]);
+            readSeg = segs[0]; readPos = 0;
+        }
+        writeSeg = segs.length > 0 ? segs[segs.length - 1] : readSeg;
+        writeBuf = map(segFile(writeSeg), segmentSize);
+        writePos = scanEnd(writeBuf, readSeg == writeSeg ? readPos : 0);
+        readBuf = readSeg == writeSeg ? writeBuf : map(segFile(readSeg), segmentSize);
+        savePos();
+        // 统计未确认的记录个数
+        for (long seg = readSeg; seg <= writeSeg; seg++) {
+            ByteBuffer buf = seg == readSeg ? readBuf : seg == writeSeg ? writeBuf : map(segFile(seg), segmentSize);
+            for (int pos = seg == readSeg ? readPos : 0; pos + 4 <= segmentSize; ) {
+                int len = buf.getInt(pos);
+                if (len <= 0) break;
+                count++;
+                pos += 4 + len;
+            }
+        }
+        if (count > 0) log.info("Journal '{}' recovered {} records", name, count);
+    }
+
+
+    /**
+     * 追加一条记录
+     * @param data 数据
+     */
+    public synchronized void append(byte[] data) {
+        if (data == null || data.length < 1) throw new IllegalArgumentException("Param data required");
+        if (data.length + 8 > segmentSize) throw new IllegalArgumentException("Data too large: " + data.length + ", segmentSize: " + segmentSize);
+        if (writePos + 4 + data.length > segmentSize) roll();
+        ByteBuffer buf = writeBuf.duplicate();
+        buf.position(writePos + 4);
+        buf.put(data);
+        writeBuf.putInt(writePos, data.length); // 最后写长度, 保证不会读到写了一半的记录
+        writePos += 4 + data.length;
+        count++;
+    }
+
+
+    /**
+     * 查看下一条未确认的记录
+     * @return null: 没有记录
+     */
+    public synchronized byte[] peek() {
+        for (;;) {
+            if (readSeg == writeSeg && readPos >= writePos) return null;
+            int len = readPos + 4 > segmentSize ? -1 : readBuf.getInt(readPos);
+            if (len == -1 || (len == 0 && readSeg < writeSeg)) { // 此段已读完
+                nextReadSeg();
+                continue;
+            }
+            if (len == 0) return null;
+            byte[] data = new byte[len];
+            ByteBuffer buf = readBuf.duplicate();
+            buf.position(readPos + 4);
+            buf.get(data);
+            peekLen = len;
+            return data;
+        }
+    }
+
+
+    /**
+     * 确认上次 {@link #peek()} 的记录已处理
+     */
+    public synchronized void ack() {
+        if (peekLen < 0) throw new IllegalStateException("Nothing to ack");
+        readPos += 4 + peekLen;
+        peekLen = -1;
+        count--;
+        savePos();
+    }
+
+
+    /**
+     * 未确认的记录个数
+     */
+    public synchronized long size() { return count; }
+
+
+    /**
+     * 写段已满, 写下一个段
+     */
+    protected void roll() {
+        if (writePos + 4 <= segmentSize) writeBuf.putInt(writePos, -1);
+        writeBuf.force();
+        writeSeg++;
+        writeBuf = map(segFile(writeSeg), segmentSize);
+        writePos = 0;
+    }
+
+
+    /**
+     * 读段已读完: 删除此段(压缩), 读下一个段
+     */
+    protected void nextReadSeg() {
+        delete(readSeg);
+        readSeg++;
+        readPos = 0;
+        peekLen = -1;
+        readBuf = readSeg == writeSeg ? writeBuf : map(segFile(readSeg), segmentSize);
+        savePos();
+    }
+
+
+    protected void savePos() {
+        posBuf.putLong(0, readSeg);
+        posBuf.putInt(8, readPos);
+    }
+
+
+    /**
+     * 找到已写数据的结尾
+     */
+    protected int scanEnd(ByteBuffer buf, int from) {
+        int pos = from;
+        while (pos + 4 <= segmentSize) {
+            int len = buf.getInt(pos);
+            if (len == 0) return pos;
+            if (len < 0) return segmentSize; // 此段已写满
+            pos += 4 + len;
+        }
+        return pos;
+    }
+
+
+    protected File segFile(long seg) { return new File(dir, String.format("%s-%019d.seg", name, seg)); }
+
+
+    protected void delete(long seg) {
+        File f = segFile(seg);
+        if (f.exists() && !f.delete()) log.warn("Delete journal segment '{}' fail", f.getAbsolutePath());
+    }
+
+
+    protected MappedByteBuffer map(File file, int size) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException ex) {
+            throw new RuntimeException("Map file '" + file.getAbsolutePath() + "' error", ex);
+        }
+    }
+
+
+    @Override
+    public synchronized void close() {
+        if (writeBuf != null) writeBuf.force();
+        if (posBuf != null) posBuf.force();
+    }
+
+
+    @Override
+    public String toString() {
+        return "Journal@" + name + "{count: " + size() + ", readSeg: " + readSeg + ", writeSeg: " + writeSeg + "}";
+    }
+}
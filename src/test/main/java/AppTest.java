@@ -1,5 +1,11 @@
 import cn.xnatural.app.AppContext;
+import cn.xnatural.app.Blocking;
+import cn.xnatural.app.Bulkhead;
+import cn.xnatural.app.Devourer;
+import cn.xnatural.app.Histogram;
 import cn.xnatural.app.Inject;
+import cn.xnatural.app.LaneQueue;
+import cn.xnatural.app.MpmcQueue;
 import cn.xnatural.app.ServerTpl;
 import cn.xnatural.app.Utils;
 import cn.xnatural.app.util.DB;
@@ -7,11 +13,46 @@ import cn.xnatural.enet.event.EL;
 import cn.xnatural.http.HttpServer;
 import cn.xnatural.remoter.Remoter;
 import cn.xnatural.sched.Sched;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
 
 public class AppTest {
+    static final Logger log = LoggerFactory.getLogger(AppTest.class);
+
+
+    /**
+     * 等待条件成立, 超时返回false
+     * @param timeout 最长等待时间
+     * @param cond 条件
+     */
+    static boolean waitUntil(Duration timeout, BooleanSupplier cond) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeout.toNanos();
+        while (!cond.getAsBoolean()) {
+            if (System.nanoTime() - deadline >= 0) return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
 
     public static void main(String[] args) {
         new AppContext()
@@ -144,4 +185,401 @@ public class AppTest {
             }
         };
     }
+
+
+    /**
+     * 系统线程池过载时拒绝低优先级任务, 排对时长不会一直增长
+     */
+    @Test
+    void testCoDel() throws Exception {
+        AppContext app = new AppContext() {
+            @Override
+            protected void customEnv(Map<String, Object> already) {
+                already.put("sys.exec.corePoolSize", 2);
+                already.put("sys.exec.maximumPoolSize", 2);
+                already.put("sys.exec.codel.enabled", true);
+                already.put("sys.exec.codel.target", 20);
+                already.put("sys.exec.codel.interval", 100);
+            }
+        };
+        Histogram wait = new Histogram();
+        AtomicInteger rejected = new AtomicInteger(), highRejected = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(1);
+        // 提交速度是处理能力的2倍
+        for (int i = 0; i < 400; i++) {
+            final long t = System.nanoTime();
+            try {
+                app.exec().execute(LaneQueue.prioritized(() -> {
+                    wait.record(System.nanoTime() - t);
+                    try { Thread.sleep(10); } catch (InterruptedException e) {}
+                }, LaneQueue.LOW));
+            } catch (RejectedExecutionException ex) {
+                rejected.incrementAndGet();
+            }
+            try {
+                if (i % 10 == 0) app.exec().execute(LaneQueue.prioritized(() -> {}, LaneQueue.HIGH));
+            } catch (RejectedExecutionException ex) {
+                highRejected.incrementAndGet();
+            }
+            Thread.sleep(2);
+        }
+        app.exec().execute(latch::countDown);
+        Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        log.info("rejected: {}, wait(ms): {}, exec stats: {}", rejected.get(), wait.snapshot(1e-6), app.execStats());
+        Assertions.assertTrue(rejected.get() > 0);
+        Assertions.assertEquals(0, highRejected.get());
+        // 不限制时最后的任务要等待约2秒
+        Assertions.assertTrue(wait.getMax() < TimeUnit.MILLISECONDS.toNanos(500));
+        app.exec().shutdown();
+    }
+
+
+    /**
+     * 阻塞调用补偿: 系统线程都阻塞时, 其它任务不用等待
+     */
+    @Test
+    void testBlocking() throws Exception {
+        AppContext app = new AppContext() {
+            @Override
+            protected void customEnv(Map<String, Object> already) {
+                already.put("sys.exec.corePoolSize", 2);
+                already.put("sys.exec.maximumPoolSize", 2);
+            }
+        };
+        CountDownLatch blocked = new CountDownLatch(2), quick = new CountDownLatch(5);
+        for (int i = 0; i < 2; i++) {
+            app.exec().execute(() -> Blocking.managedRun(() -> {
+                blocked.countDown();
+                try { Thread.sleep(300); } catch (InterruptedException e) {}
+            }));
+        }
+        Assertions.assertTrue(blocked.await(1, TimeUnit.SECONDS));
+        final long start = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) app.exec().execute(quick::countDown);
+        Assertions.assertTrue(quick.await(200, TimeUnit.MILLISECONDS));
+        log.info("quick tasks done in {}ms, exec stats: {}", System.currentTimeMillis() - start, app.execStats());
+        Assertions.assertEquals(2, (int) app.execStats().get("compensated"));
+        // 阻塞结束后补偿的线程数恢复
+        Assertions.assertTrue(waitUntil(Duration.ofSeconds(5), () -> (int) app.execStats().get("compensated") == 0));
+
+        // 阻塞线程池
+        Assertions.assertEquals("blocking-1", app.blockingExec().submit(() -> Thread.currentThread().getName()).get(1, TimeUnit.SECONDS));
+        app.exec().shutdown();
+        app.blockingExec().shutdown();
+    }
+
+
+    /**
+     * 虚拟线程(sys.exec.type=virtual, JDK21+) 与 系统线程池 对比: 1万个并发阻塞任务的吞吐和内存
+     * 当前JDK不支持虚拟线程时使用系统线程池
+     */
+    @Test
+    void testVirtualExec() throws Exception {
+        for (String type : Arrays.asList("pool", "virtual")) {
+            AppContext app = new AppContext() {
+                @Override
+                protected void customEnv(Map<String, Object> already) {
+                    already.put("sys.exec.type", type);
+                }
+            };
+            final int count = 10000;
+            CountDownLatch latch = new CountDownLatch(count);
+            System.gc();
+            final long startMem = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+            final long start = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                app.exec().execute(() -> {
+                    try { Thread.sleep(5); } catch (InterruptedException e) {}
+                    latch.countDown();
+                });
+            }
+            final long usedMem = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory() - startMem;
+            Assertions.assertTrue(latch.await(30, TimeUnit.SECONDS));
+            log.info("{}: {} blocking tasks in {}ms, memory: {}KB, exec: {}", type, count, System.currentTimeMillis() - start, usedMem / 1024, app.exec());
+
+            // 对列并发控制不变
+            Devourer devourer = app.queue("virtual_" + type, null).parallel(4);
+            AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+            CountDownLatch latch2 = new CountDownLatch(100);
+            for (int i = 0; i < 100; i++) {
+                devourer.offer(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try { Thread.sleep(2); } catch (InterruptedException e) {}
+                    running.decrementAndGet();
+                    latch2.countDown();
+                });
+            }
+            Assertions.assertTrue(latch2.await(10, TimeUnit.SECONDS));
+            Assertions.assertTrue(maxRunning.get() <= 4);
+            app.exec().shutdown();
+        }
+    }
+
+
+    /**
+     * 工作窃取线程池(sys.exec.type=forkjoin) 与 系统线程池 对比: 4 到 64 个线程, 多个线程提交大量短任务
+     */
+    @Test
+    void testForkJoinExec() throws Exception {
+        for (int threads : new int[]{4, 16, 64}) {
+            for (String type : Arrays.asList("pool", "forkjoin")) {
+                AppContext app = new AppContext() {
+                    @Override
+                    protected void customEnv(Map<String, Object> already) {
+                        already.put("sys.exec.type", type);
+                        already.put("sys.exec.corePoolSize", threads);
+                        already.put("sys.exec.maximumPoolSize", threads);
+                    }
+                };
+                final int submitters = 4, count = 50000;
+                LongAdder sum = new LongAdder();
+                CountDownLatch latch = new CountDownLatch(submitters * count);
+                final long start = System.currentTimeMillis();
+                for (int i = 0; i < submitters; i++) {
+                    new Thread(() -> {
+                        for (int j = 0; j < count; j++) {
+                            app.exec().execute(() -> {
+                                sum.increment();
+                                latch.countDown();
+                            });
+                        }
+                    }).start();
+                }
+                Assertions.assertTrue(latch.await(30, TimeUnit.SECONDS));
+                log.info("{} threads {}: {} tasks in {}ms, exec stats: {}", threads, type, sum.sum(), System.currentTimeMillis() - start, app.execStats());
+                app.exec().shutdown();
+            }
+        }
+
+        // 异常被拦截, 阻塞补偿
+        AppContext app = new AppContext() {
+            @Override
+            protected void customEnv(Map<String, Object> already) {
+                already.put("sys.exec.type", "forkjoin");
+                already.put("sys.exec.corePoolSize", 2);
+                already.put("sys.exec.maximumPoolSize", 8);
+            }
+        };
+        app.exec().execute(() -> { throw new RuntimeException("test"); });
+        CountDownLatch blocked = new CountDownLatch(2), quick = new CountDownLatch(5);
+        for (int i = 0; i < 2; i++) {
+            app.exec().execute(() -> Blocking.managedRun(() -> {
+                blocked.countDown();
+                try { Thread.sleep(300); } catch (InterruptedException e) {}
+            }));
+        }
+        Assertions.assertTrue(blocked.await(1, TimeUnit.SECONDS));
+        for (int i = 0; i < 5; i++) app.exec().execute(quick::countDown);
+        Assertions.assertTrue(quick.await(200, TimeUnit.MILLISECONDS));
+        log.info("exec stats: {}", app.execStats());
+        app.exec().shutdown();
+    }
+
+
+    /**
+     * 无锁数组对列: 多生产者多消费者
+     */
+    @Test
+    void testMpmcQueue() throws Exception {
+        MpmcQueue<Integer> q = new MpmcQueue<>(3);
+        Assertions.assertEquals(4, q.capacity());
+        for (int i = 0; i < 4; i++) Assertions.assertTrue(q.offer(i));
+        Assertions.assertFalse(q.offer(4));
+        Assertions.assertEquals(0, (int) q.peek());
+        Assertions.assertEquals(0, (int) q.poll());
+        Assertions.assertTrue(q.offer(4));
+        Assertions.assertEquals(4, q.size());
+
+        // 入对/出对 耗时对比
+        for (BlockingQueue<Integer> queue : Arrays.<BlockingQueue<Integer>>asList(new LinkedBlockingQueue<>(1 << 16), new LaneQueue<>(1 << 16), new MpmcQueue<>(1 << 16))) {
+            final int producers = 4, count = 500000;
+            LongAdder sum = new LongAdder();
+            CountDownLatch latch = new CountDownLatch(producers * 2);
+            final long start = System.currentTimeMillis();
+            for (int i = 0; i < producers; i++) {
+                new Thread(() -> {
+                    for (int j = 1; j <= count; j++) {
+                        try { queue.put(j); } catch (InterruptedException e) {}
+                    }
+                    latch.countDown();
+                }).start();
+                new Thread(() -> {
+                    for (int j = 0; j < count; j++) {
+                        try { sum.add(queue.take()); } catch (InterruptedException e) {}
+                    }
+                    latch.countDown();
+                }).start();
+            }
+            Assertions.assertTrue(latch.await(60, TimeUnit.SECONDS));
+            log.info("{}: {} items in {}ms", queue.getClass().getSimpleName(), producers * count, System.currentTimeMillis() - start);
+            Assertions.assertEquals(producers * (long) count * (count + 1) / 2, sum.sum());
+            Assertions.assertTrue(queue.isEmpty());
+        }
+
+        // 系统线程池使用无锁数组对列
+        AppContext app = new AppContext() {
+            @Override
+            protected void customEnv(Map<String, Object> already) {
+                already.put("sys.exec.queue", "mpmc");
+                already.put("sys.exec.corePoolSize", 2);
+                already.put("sys.exec.maximumPoolSize", 8);
+            }
+        };
+        CountDownLatch latch = new CountDownLatch(1000);
+        for (int i = 0; i < 1000; i++) {
+            app.exec().execute(() -> {
+                try { Thread.sleep(1); } catch (InterruptedException e) {}
+                latch.countDown();
+            });
+        }
+        Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        log.info("exec stats: {}", app.execStats());
+        Assertions.assertTrue((int) app.execStats().get("poolSize") > 2);
+        app.exec().shutdown();
+    }
+
+
+    /**
+     * 线程池大小爬山算法: 阻塞任务积压时增加线程, 空闲时减少
+     */
+    @Test
+    void testHillClimbing() throws Exception {
+        AppContext app = new AppContext() {
+            @Override
+            protected void customEnv(Map<String, Object> already) {
+                already.put("sys.exec.corePoolSize", 2);
+                already.put("sys.exec.maximumPoolSize", 16);
+                already.put("sys.exec.hillClimbing.enabled", true);
+                already.put("sys.exec.hillClimbing.interval", 100);
+            }
+        };
+        AtomicBoolean stop = new AtomicBoolean();
+        LongAdder done = new LongAdder();
+        new Thread(() -> {
+            while (!stop.get()) {
+                if (app.exec() instanceof ThreadPoolExecutor && ((ThreadPoolExecutor) app.exec()).getQueue().size() > 100) {
+                    try { Thread.sleep(1); } catch (InterruptedException e) {}
+                    continue;
+                }
+                app.exec().execute(() -> {
+                    try { Thread.sleep(5); } catch (InterruptedException e) {}
+                    done.increment();
+                });
+            }
+        }).start();
+        Assertions.assertTrue(waitUntil(Duration.ofSeconds(10), () -> (int) app.execStats().get("poolSize") > 8));
+        log.info("busy: done {}, exec stats: {}", done.sum(), app.execStats());
+        stop.set(true);
+        Assertions.assertTrue(waitUntil(Duration.ofSeconds(10), () -> (int) app.execStats().get("poolSize") == 2));
+        log.info("idle: exec stats: {}", app.execStats());
+        app.exec().shutdown();
+    }
+
+
+    /**
+     * 运行时调整系统线程池: sys.exec.tune, sys.env.reload
+     */
+    @Test
+    void testTuneExec() throws Exception {
+        AtomicInteger maxCfg = new AtomicInteger(4);
+        AppContext app = new AppContext() {
+            @Override
+            protected void customEnv(Map<String, Object> already) {
+                already.put("sys.exec.corePoolSize", 2);
+                already.put("sys.exec.maximumPoolSize", maxCfg.get());
+                if (maxCfg.get() > 3) already.put("custom.removed", "x");
+            }
+        };
+        ThreadPoolExecutor exec = (ThreadPoolExecutor) app.exec();
+        AtomicBoolean stop = new AtomicBoolean();
+        new Thread(() -> { // 负载下调整
+            while (!stop.get()) {
+                if (exec.getQueue().size() > 50) {
+                    try { Thread.sleep(1); } catch (InterruptedException e) {}
+                    continue;
+                }
+                exec.execute(() -> {
+                    try { Thread.sleep(5); } catch (InterruptedException e) {}
+                });
+            }
+        }).start();
+        Assertions.assertTrue(waitUntil(Duration.ofSeconds(5), () -> exec.getCompletedTaskCount() > 100));
+        Assertions.assertTrue(exec.getPoolSize() <= 4);
+
+        Map<String, Object> attrs = new HashMap<>();
+        attrs.put("corePoolSize", 10);
+        attrs.put("maximumPoolSize", 12);
+        log.info("tuned: {}", app.tuneExec(attrs));
+        Assertions.assertTrue(waitUntil(Duration.ofSeconds(5), () -> exec.getPoolSize() >= 10));
+        Assertions.assertEquals(12, exec.getMaximumPoolSize());
+        Assertions.assertEquals(12, (int) app.getAttr("sys.exec.maximumPoolSize", Integer.class, 0));
+
+        attrs.clear();
+        attrs.put("corePoolSize", 5);
+        attrs.put("maximumPoolSize", 3);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> app.tuneExec(attrs));
+
+        // 修改配置后重新加载: 缩小
+        maxCfg.set(3);
+        app.setAttr("custom.override", "y");
+        Assertions.assertEquals("x", app.getAttr("custom.removed", String.class, null));
+        app.reloadEnv();
+        // 配置中删除的属性不再存在, 运行时设置的保留
+        Assertions.assertNull(app.getAttr("custom.removed", String.class, null));
+        Assertions.assertEquals("y", app.getAttr("custom.override", String.class, null));
+        Assertions.assertEquals(2, exec.getCorePoolSize());
+        Assertions.assertEquals(3, exec.getMaximumPoolSize());
+        Assertions.assertTrue(waitUntil(Duration.ofSeconds(5), () -> exec.getPoolSize() <= 3));
+        log.info("reloaded exec stats: {}", app.execStats());
+        stop.set(true);
+        exec.shutdown();
+    }
+
+
+    /**
+     * 服务的线程池隔离舱: 一个服务的突发流量不影响其它服务
+     */
+    @Test
+    void testBulkhead() throws Exception {
+        class TestApp extends AppContext {
+            @Override
+            protected void customEnv(Map<String, Object> already) {
+                already.put("sys.exec.corePoolSize", 2);
+                already.put("sys.exec.maximumPoolSize", 2);
+                already.put("burst.exec.maxPoolSize", 2);
+            }
+            Executor execFor(String name) { return wrapExecForSource(new ServerTpl(name)); }
+        }
+        TestApp app = new TestApp();
+        Executor burst = app.execFor("burst"), quiet = app.execFor("quiet");
+        Assertions.assertSame(burst, app.execFor("burst"));
+        // 突发流量
+        CountDownLatch burstLatch = new CountDownLatch(200);
+        for (int i = 0; i < 200; i++) {
+            burst.execute(() -> {
+                try { Thread.sleep(20); } catch (InterruptedException e) {}
+                burstLatch.countDown();
+            });
+        }
+        // 兼容原包装的属性: 系统线程池的线程数, 等待数包括溢出到自己线程池的
+        Bulkhead bulkhead = (Bulkhead) burst;
+        Assertions.assertEquals(2, bulkhead.getCorePoolSize());
+        Assertions.assertEquals(2, bulkhead.getMaximumPoolSize());
+        Assertions.assertTrue(bulkhead.getWaitingCount() > 100);
+        // 另一个服务的任务不用等待突发流量执行完(约 200 * 20ms / 4 = 1秒)
+        Histogram latency = new Histogram();
+        CountDownLatch quietLatch = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            final long t = System.nanoTime();
+            quiet.execute(() -> {
+                latency.record(System.nanoTime() - t);
+                quietLatch.countDown();
+            });
+        }
+        Assertions.assertTrue(quietLatch.await(5, TimeUnit.SECONDS));
+        log.info("quiet latency(ms): {}, exec stats: {}", latency.snapshot(1e-6), app.execStats());
+        Assertions.assertTrue(latency.getMax() < TimeUnit.MILLISECONDS.toNanos(100));
+        Assertions.assertTrue(burstLatch.await(10, TimeUnit.SECONDS));
+        app.exec().shutdown();
+    }
 }
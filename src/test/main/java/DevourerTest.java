@@ -1,14 +1,33 @@
+import cn.xnatural.app.AdaptiveLimiter;
+import cn.xnatural.app.AppContext;
+import cn.xnatural.app.BatchDevourer;
+import cn.xnatural.app.Deadline;
 import cn.xnatural.app.Devourer;
+import cn.xnatural.app.FairScheduler;
+import cn.xnatural.app.Histogram;
+import cn.xnatural.app.JournalDevourer;
+import cn.xnatural.app.KeyedDevourer;
+import cn.xnatural.app.LatchLock;
+import cn.xnatural.app.LaneQueue;
+import cn.xnatural.app.OrderedDevourer;
+import cn.xnatural.app.Pipeline;
+import cn.xnatural.app.ServerTpl;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.time.Duration;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class DevourerTest {
     static final Logger log = LoggerFactory.getLogger(DevourerTest.class);
@@ -81,6 +100,91 @@ public class DevourerTest {
     }
 
 
+    /**
+     * 暂停到时间后自动恢复, 不需要新任务入对
+     */
+    @Test
+    void testSuspendAutoResume() throws Exception {
+        Devourer devourer = new Devourer("autoResume");
+        AtomicInteger count = new AtomicInteger();
+        devourer.suspend(Duration.ofMillis(200));
+        for (int i = 0; i < 10; i++) devourer.offer(count::incrementAndGet);
+        Thread.sleep(100);
+        Assertions.assertEquals(0, count.get());
+        Thread.sleep(300);
+        Assertions.assertEquals(10, count.get());
+        // 定时器触发时, 暂停时间需已到(按 ms 计算时间差可能还差一点), 否则要重新定时
+        for (int i = 0; i < 50; i++) {
+            CountDownLatch latch = new CountDownLatch(1);
+            devourer.suspend(Duration.ofMillis(1 + i % 3));
+            devourer.offer(latch::countDown);
+            Assertions.assertTrue(latch.await(1, TimeUnit.SECONDS), "round " + i);
+        }
+    }
+
+
+    @Test
+    void testDelay() throws Exception {
+        Devourer devourer = new Devourer("delay");
+        List<Long> delays = Collections.synchronizedList(new ArrayList<>());
+        long start = System.nanoTime();
+        for (int i = 1; i <= 5; i++) {
+            devourer.offer(() -> delays.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)), Duration.ofMillis(100 * i));
+        }
+        Assertions.assertEquals(5, devourer.getDelayedCount());
+        Thread.sleep(700);
+        log.info("delays: {}ms", delays);
+        Assertions.assertEquals(5, delays.size());
+        for (int i = 0; i < 5; i++) {
+            Assertions.assertTrue(delays.get(i) >= 100 * (i + 1) && delays.get(i) < 100 * (i + 1) + 50);
+        }
+        Assertions.assertEquals(0, devourer.getDelayedCount());
+        // 定时器在 offer 返回前就到期: 任务不丢, 也不残留在延迟集合中
+        CountDownLatch latch = new CountDownLatch(2000);
+        for (int i = 0; i < 2000; i++) devourer.offer(latch::countDown, Duration.ZERO);
+        Assertions.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(0, devourer.getDelayedCount());
+        // 线程池满(CallerRunsPolicy): 到期的任务不在定时器线程中执行, 等线程池有空再执行
+        ThreadPoolExecutor busy = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new SynchronousQueue<>(), new ThreadPoolExecutor.CallerRunsPolicy());
+        CountDownLatch block = new CountDownLatch(1);
+        busy.execute(() -> {
+            try { block.await(); } catch (InterruptedException e) { log.error("", e); }
+        });
+        CompletableFuture<String> runOn = new CompletableFuture<>();
+        new Devourer("delay-busy", busy).offer(() -> runOn.complete(Thread.currentThread().getName()), Duration.ofMillis(10));
+        Thread.sleep(100);
+        Assertions.assertFalse(runOn.isDone());
+        block.countDown();
+        Assertions.assertFalse("devourer-timer".equals(runOn.get(1, TimeUnit.SECONDS)));
+        busy.shutdown();
+    }
+
+
+    /**
+     * 失败重试按指数退避, 不会不断的立即重试
+     */
+    @Test
+    void testRetryBackoff() throws Exception {
+        Devourer devourer = new Devourer("retry").retryBackoff(Duration.ofMillis(20), Duration.ofMillis(200));
+        devourer.failMaxKeep(10);
+        List<Long> attempts = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger after = new AtomicInteger();
+        long start = System.nanoTime();
+        devourer.offer(() -> {
+            attempts.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            if (attempts.size() < 6) throw new RuntimeException("fail " + attempts.size());
+        });
+        devourer.offer(after::incrementAndGet);
+        Thread.sleep(1000);
+        log.info("attempts: {}ms", attempts);
+        Assertions.assertEquals(6, attempts.size());
+        // 间隔: 10~20, 20~40, 40~80, 80~160, 100~200
+        Assertions.assertTrue(attempts.get(5) - attempts.get(0) >= 250);
+        // 重试期间后边的任务不会先执行
+        Assertions.assertEquals(1, after.get());
+    }
+
+
     @Test
     void testUseLast() throws Exception {
         Devourer devourer = new Devourer("useLast").useLast(true);
@@ -134,4 +238,826 @@ public class DevourerTest {
         Thread.sleep(1000 * 20);
         exec.shutdown();
     }
+
+
+    @Test
+    void testSpeedBurst() throws Exception {
+        Devourer devourer = new Devourer().speed("10/s", 5);
+        AtomicInteger count = new AtomicInteger();
+        for (int i = 0; i < 30; i++) {
+            devourer.offer(count::incrementAndGet);
+        }
+        Thread.sleep(200);
+        // 突发5个, 之后按每100ms一个执行
+        log.info("burst: " + count.get());
+        Assertions.assertTrue(count.get() >= 5 && count.get() <= 7);
+        Thread.sleep(1000);
+        log.info("after 1.2s: " + count.get());
+        Assertions.assertTrue(count.get() >= 14 && count.get() <= 18);
+    }
+
+
+    /**
+     * 速度限制的对列越来越多时, 线程池中忙的线程数保持平稳(不会有线程sleep等待)
+     */
+    @Test
+    void testSpeedPoolUtilization() throws Exception {
+        ThreadPoolExecutor exec = new ThreadPoolExecutor(4, 4, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>());
+        for (int queueCount : new int[]{10, 50, 200}) {
+            List<Devourer> devourers = new ArrayList<>();
+            AtomicInteger executed = new AtomicInteger();
+            for (int i = 0; i < queueCount; i++) {
+                Devourer devourer = new Devourer("speed-" + i, exec).speed("20/s");
+                for (int j = 0; j < 40; j++) devourer.offer(executed::incrementAndGet);
+                devourers.add(devourer);
+            }
+            long maxActive = 0, sumActive = 0, samples = 0;
+            long start = System.currentTimeMillis();
+            while (System.currentTimeMillis() - start < 2000) {
+                int active = exec.getActiveCount();
+                maxActive = Math.max(maxActive, active);
+                sumActive += active; samples++;
+                Thread.sleep(5);
+            }
+            log.info("queues: {}, executed: {}, avgActive: {}, maxActive: {}", queueCount, executed.get(), String.format("%.2f", sumActive / (double) samples), maxActive);
+            // 不占用线程等待: 对列再多也能按速度执行完, 忙的线程数不随对列数增长
+            Assertions.assertTrue(executed.get() >= queueCount * 35);
+            Assertions.assertTrue(sumActive / (double) samples < 0.5);
+            Assertions.assertTrue(maxActive < exec.getMaximumPoolSize());
+            devourers.forEach(d -> d.speed(null).offer(() -> {}));
+            Thread.sleep(500);
+        }
+        exec.shutdown();
+    }
+
+
+    @Test
+    void testBatch() throws Exception {
+        AtomicInteger batches = new AtomicInteger();
+        AtomicInteger total = new AtomicInteger();
+        BatchDevourer<Integer> devourer = new BatchDevourer<Integer>("batch")
+                .maxBatch(100).linger(Duration.ofMillis(50))
+                .consumer(ls -> {
+                    Assertions.assertTrue(ls.size() <= 100);
+                    batches.incrementAndGet();
+                    total.addAndGet(ls.size());
+                });
+        devourer.parallel(2);
+        for (int i = 0; i < 10050; i++) devourer.offer(i);
+        Thread.sleep(500);
+        log.info("batches: " + batches.get() + ", total: " + total.get());
+        Assertions.assertEquals(10050, total.get());
+        Assertions.assertTrue(batches.get() <= 110);
+        // 对列满丢弃了批次: 剩下的数据 linger 后照常消费
+        AtomicInteger consumed = new AtomicInteger();
+        BatchDevourer<Integer> full = new BatchDevourer<Integer>("batch-full")
+                .maxBatch(100).linger(Duration.ofMillis(20)).consumer(ls -> consumed.addAndGet(ls.size()));
+        full.capacity(1, Devourer.Overflow.DROP_NEWEST);
+        full.suspend(d -> true);
+        for (int i = 0; i < 250; i++) full.offer(i);
+        full.resume();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (consumed.get() < 250 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        log.info("dropped batch: {}", full);
+        Assertions.assertEquals(250, consumed.get());
+    }
+
+
+    @Test
+    void testCapacity() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        Runnable block = () -> {
+            try { latch.await(); } catch (InterruptedException e) { log.error("", e); }
+        };
+        // 拒绝
+        Devourer reject = new Devourer("reject").capacity(2, Devourer.Overflow.REJECT);
+        reject.offer(block);
+        Thread.sleep(50);
+        reject.offer(() -> {}).offer(() -> {});
+        Assertions.assertThrows(RejectedExecutionException.class, () -> reject.offer(() -> {}));
+        Assertions.assertEquals(2, reject.getWaitingCount());
+        // 丢弃最老的
+        AtomicInteger last = new AtomicInteger();
+        Devourer dropOldest = new Devourer("dropOldest").capacity(2, Devourer.Overflow.DROP_OLDEST);
+        dropOldest.offer(block);
+        Thread.sleep(50);
+        for (int i = 1; i <= 10; i++) {
+            int v = i;
+            dropOldest.offer(() -> last.set(v));
+        }
+        Assertions.assertEquals(2, dropOldest.getWaitingCount());
+        // 由入对线程执行
+        AtomicBoolean callerRun = new AtomicBoolean();
+        Devourer callerRuns = new Devourer("callerRuns").capacity(1, Devourer.Overflow.CALLER_RUNS);
+        callerRuns.offer(block);
+        Thread.sleep(50);
+        callerRuns.offer(() -> {});
+        callerRuns.offer(() -> callerRun.set(Thread.currentThread().getName().equals("main")));
+        Assertions.assertTrue(callerRun.get());
+        // 等待超时
+        Devourer blocking = new Devourer("block").capacity(1, Duration.ofMillis(200));
+        blocking.offer(block);
+        Thread.sleep(50);
+        blocking.offer(() -> {});
+        long start = System.currentTimeMillis();
+        Assertions.assertThrows(RejectedExecutionException.class, () -> blocking.offer(() -> {}));
+        Assertions.assertTrue(System.currentTimeMillis() - start >= 190);
+
+        latch.countDown();
+        Thread.sleep(100);
+        Assertions.assertEquals(10, last.get());
+        Assertions.assertEquals(0, dropOldest.getWaitingCount());
+        // 并发丢弃最老的: 入对线程不空转, 对列不超出容量
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+        Devourer contended = new Devourer("dropOldest-contended", exec).capacity(1, Devourer.Overflow.DROP_OLDEST).parallel(4);
+        CountDownLatch offered = new CountDownLatch(8);
+        for (int t = 0; t < 8; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < 20000; i++) contended.offer(() -> {});
+                offered.countDown();
+            }).start();
+        }
+        Assertions.assertTrue(offered.await(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(contended.getWaitingCount() <= 1);
+        exec.shutdown();
+    }
+
+
+    @Test
+    void testKeyed() throws Exception {
+        ExecutorService exec = Executors.newFixedThreadPool(8);
+        KeyedDevourer devourer = new KeyedDevourer("keyed", exec).parallel(4);
+        Map<Integer, List<Integer>> result = new ConcurrentHashMap<>();
+        AtomicInteger maxParallel = new AtomicInteger();
+        for (int i = 0; i < 1000; i++) {
+            int k = i % 20, v = i;
+            devourer.offer(k, () -> {
+                maxParallel.accumulateAndGet(devourer.getParallel(), Math::max);
+                result.computeIfAbsent(k, kk -> Collections.synchronizedList(new ArrayList<>())).add(v);
+            });
+        }
+        Thread.sleep(500);
+        log.info(devourer + ", maxParallel: " + maxParallel.get());
+        Assertions.assertTrue(maxParallel.get() <= 4);
+        Assertions.assertEquals(0, devourer.getActiveKeyCount());
+        result.forEach((k, ls) -> {
+            Assertions.assertEquals(50, ls.size());
+            for (int i = 1; i < ls.size(); i++) Assertions.assertTrue(ls.get(i - 1) < ls.get(i));
+        });
+        exec.shutdown();
+    }
+
+
+    /**
+     * 小任务吞吐量对比: 每个任务提交一次线程池 vs 连续执行
+     */
+    @Test
+    void testDrain() throws Exception {
+        ThreadPoolExecutor exec = new ThreadPoolExecutor(4, 4, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>());
+        final int total = 2_000_000;
+        for (int round = 0; round < 3; round++) {
+            for (int drainMax : new int[]{1, 64}) {
+                Devourer devourer = new Devourer("drain-" + drainMax, exec).parallel(2).drain(drainMax, Duration.ofNanos(200_000));
+                LongAdder done = new LongAdder();
+                CountDownLatch latch = new CountDownLatch(1);
+                long start = System.nanoTime();
+                for (int i = 0; i < total; i++) {
+                    devourer.offer(() -> {
+                        done.increment();
+                        if (done.sum() == total) latch.countDown();
+                    });
+                }
+                latch.await(60, TimeUnit.SECONDS);
+                long spend = System.nanoTime() - start;
+                log.info("drainMax: {}, tasks/s: {}, completed: {}", drainMax, (long) (total / (spend / 1e9)), exec.getCompletedTaskCount());
+            }
+        }
+        exec.shutdown();
+    }
+
+
+    /**
+     * 模拟下游: 同时处理超过6个请求时, 执行时长按比例变长
+     */
+    @Test
+    void testAdaptive() throws Exception {
+        ExecutorService exec = Executors.newFixedThreadPool(40);
+        Devourer devourer = new Devourer("adaptive", exec).adaptive(1, 32);
+        AtomicInteger inflight = new AtomicInteger();
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicInteger capacity = new AtomicInteger(6);
+        Runnable call = () -> {
+            int n = inflight.incrementAndGet();
+            try {
+                Thread.sleep(5L * Math.max(1, n / capacity.get()));
+            } catch (InterruptedException e) {
+                log.error("", e);
+            } finally {
+                inflight.decrementAndGet();
+            }
+        };
+        exec.execute(() -> {
+            while (!stop.get()) {
+                if (devourer.getWaitingCount() < 100) devourer.offer(call);
+                else Thread.yield();
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(500);
+            if (i == 5) capacity.set(2); // 下游变慢
+            log.info("capacity: " + capacity.get() + ", " + devourer);
+        }
+        Assertions.assertTrue(devourer.getLimit() < 10);
+        stop.set(true);
+        while (devourer.getWaitingCount() > 0 || devourer.getParallel() > 0) Thread.sleep(10);
+        exec.shutdown();
+
+        // 任务没有真正排队(等待时长远小于执行时长)时不加并发
+        LatchLock lock = new LatchLock();
+        AdaptiveLimiter limiter = new AdaptiveLimiter(lock, 1, 8).tolerance(1.5).backoff(0.5);
+        lock.tryLock();
+        for (int i = 0; i < 100; i++) limiter.onSuccess(1_000_000, 1_000, true);
+        Assertions.assertEquals(1, limiter.getLimit());
+        for (int i = 0; i < 100; i++) limiter.onSuccess(1_000_000, 5_000_000, true);
+        Assertions.assertTrue(limiter.getLimit() > 1);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new Devourer("adaptive").adaptive(1, 4, 1, 0.5));
+    }
+
+
+    @Test
+    void testLatchLock() throws Exception {
+        // 多线程同时释放时不能丢失释放(否则许可越来越少)
+        LatchLock lock = new LatchLock().limit(8);
+        ExecutorService exec = Executors.newFixedThreadPool(8);
+        CyclicBarrier barrier = new CyclicBarrier(8, () -> { // 每轮: 先占满, 再8个线程同时释放
+            Assertions.assertEquals(0, lock.getLatchSize());
+            for (int i = 0; i < 8; i++) lock.tryLock();
+        });
+        CountDownLatch done = new CountDownLatch(8);
+        for (int t = 0; t < 8; t++) {
+            exec.execute(() -> {
+                try {
+                    for (int i = 0; i < 2000; i++) {
+                        barrier.await();
+                        lock.release();
+                    }
+                    barrier.await(); // 最后一轮释放都完成后再检查
+                } catch (Exception e) {
+                    log.error("", e);
+                    return;
+                }
+                done.countDown();
+            });
+        }
+        Assertions.assertTrue(done.await(30, TimeUnit.SECONDS));
+        for (int i = 0; i < 8; i++) lock.release(); // 最后一次 barrier 占满的
+        Assertions.assertEquals(0, lock.getLatchSize());
+        for (int i = 0; i < 8; i++) Assertions.assertTrue(lock.tryLock());
+        Assertions.assertFalse(lock.tryLock());
+        Assertions.assertEquals(7, lock.release());
+        exec.shutdown();
+    }
+
+
+    @Test
+    void testFairScheduler() throws Exception {
+        ExecutorService exec = Executors.newFixedThreadPool(2);
+        FairScheduler scheduler = new FairScheduler(exec, 2);
+        Runnable work = () -> {
+            try { Thread.sleep(1); } catch (InterruptedException e) { log.error("", e); }
+        };
+        // 按权重分配
+        AtomicInteger c1 = new AtomicInteger(), c4 = new AtomicInteger();
+        Devourer q1 = new Devourer("w1", scheduler.lane("w1", 1)).parallel(8);
+        Devourer q4 = new Devourer("w4", scheduler.lane("w4", 4)).parallel(8);
+        for (int i = 0; i < 5000; i++) {
+            q1.offer(() -> { work.run(); c1.incrementAndGet(); });
+            q4.offer(() -> { work.run(); c4.incrementAndGet(); });
+        }
+        Thread.sleep(1000);
+        log.info("w1: {}, w4: {}, {}", c1.get(), c4.get(), scheduler);
+        Assertions.assertTrue(c4.get() > c1.get() * 3);
+        // 繁忙对列不影响其它对列的延迟
+        Devourer fast = new Devourer("fast", scheduler.lane("fast", 1));
+        long maxDelay = 0;
+        for (int i = 0; i < 20; i++) {
+            CountDownLatch latch = new CountDownLatch(1);
+            long start = System.nanoTime();
+            fast.offer(latch::countDown);
+            latch.await();
+            maxDelay = Math.max(maxDelay, System.nanoTime() - start);
+        }
+        log.info("fast queue max delay: {}ms, hot waiting: {}", maxDelay / 1000_000.0, q1.getWaitingCount() + q4.getWaitingCount());
+        Assertions.assertTrue(maxDelay < TimeUnit.MILLISECONDS.toNanos(50));
+        q1.shutdown(); q4.shutdown();
+        Thread.sleep(100);
+        // 线程池拒绝: 许可释放, 任务放回通道后重试, 不丢失
+        AtomicInteger rejects = new AtomicInteger();
+        FairScheduler rejecting = new FairScheduler(cmd -> {
+            if (rejects.incrementAndGet() % 3 == 0) throw new RejectedExecutionException("full");
+            exec.execute(cmd);
+        }, 2);
+        AtomicInteger done = new AtomicInteger();
+        Devourer q = new Devourer("rejected", rejecting.lane("rejected", 1)).parallel(4);
+        for (int i = 0; i < 100; i++) q.offer(done::incrementAndGet);
+        for (int i = 0; i < 200 && done.get() < 100; i++) Thread.sleep(10);
+        log.info("rejected: {}, done: {}, {}", rejects.get() / 3, done.get(), rejecting);
+        Assertions.assertEquals(100, done.get());
+        Assertions.assertEquals(0, rejecting.getInflight());
+        exec.shutdown();
+    }
+
+
+    @Test
+    void testJournal() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "devourer-journal-" + System.nanoTime());
+        ExecutorService exec = Executors.newFixedThreadPool(2);
+        // 下游故障: 内存满后, 内存中的数据和之后的数据都写入磁盘
+        JournalDevourer<String> devourer = new JournalDevourer<String>("report", exec, dir, 64 * 1024).memory(100);
+        devourer.suspend(d -> true);
+        for (int i = 0; i < 5000; i++) devourer.offer("data-" + i);
+        log.info("before restart: {}", devourer);
+        Assertions.assertEquals(5000, devourer.getItemCount());
+        Assertions.assertEquals(5000, devourer.getJournalCount());
+        devourer.shutdown();
+        // 重启后按入对顺序继续消费, 消费完的日志段被删除
+        exec = Executors.newFixedThreadPool(2);
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        devourer = new JournalDevourer<String>("report", exec, dir, 64 * 1024).consumer(received::add);
+        devourer.drain(100, Duration.ofMillis(10));
+        while (devourer.getItemCount() > 0) Thread.sleep(10);
+        log.info("after restart: {}", devourer);
+        Assertions.assertEquals(5000, received.size());
+        for (int i = 0; i < 5000; i++) Assertions.assertEquals("data-" + i, received.get(i));
+        Assertions.assertTrue(dir.list().length <= 2);
+        devourer.shutdown();
+        // 正在消费时关闭: 等待消费完, 重启后不重复消费, 顺序不变
+        exec = Executors.newFixedThreadPool(2);
+        received.clear();
+        CountDownLatch consuming = new CountDownLatch(1);
+        devourer = new JournalDevourer<String>("report", exec, dir, 64 * 1024).memory(100).consumer(s -> {
+            consuming.countDown();
+            try { Thread.sleep(200); } catch (InterruptedException e) { log.error("", e); }
+            received.add(s);
+        });
+        for (int i = 0; i < 50; i++) devourer.offer("data-" + i);
+        consuming.await();
+        devourer.shutdown();
+        Assertions.assertEquals(Collections.singletonList("data-0"), received);
+        exec = Executors.newFixedThreadPool(2);
+        devourer = new JournalDevourer<String>("report", exec, dir, 64 * 1024).consumer(received::add);
+        devourer.drain(100, Duration.ofMillis(10));
+        while (devourer.getItemCount() > 0) Thread.sleep(10);
+        Assertions.assertEquals(50, received.size());
+        for (int i = 0; i < 50; i++) Assertions.assertEquals("data-" + i, received.get(i));
+        devourer.shutdown();
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+
+    @Test
+    void testJournalBenchmark() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "devourer-journal-" + System.nanoTime());
+        ExecutorService exec = Executors.newFixedThreadPool(2);
+        int total = 200000;
+        LongAdder consumed = new LongAdder();
+        // memory(0): 全部走磁盘
+        JournalDevourer<String> devourer = new JournalDevourer<String>("bench", exec, dir).memory(0);
+        devourer.suspend(d -> true);
+        long start = System.nanoTime();
+        for (int i = 0; i < total; i++) devourer.offer("data-" + i);
+        long spillTime = System.nanoTime() - start;
+        devourer.consumer(s -> consumed.increment()).drain(1000, Duration.ofMillis(10));
+        start = System.nanoTime();
+        devourer.resume();
+        while (consumed.sum() < total) Thread.sleep(1);
+        long replayTime = System.nanoTime() - start;
+        log.info("spill: {} ops/s, replay: {} ops/s",
+                (long) (total / (spillTime / 1e9)), (long) (total / (replayTime / 1e9)));
+        devourer.shutdown();
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+
+    @Test
+    void testStats() throws Exception {
+        Devourer devourer = new Devourer("stats").capacity(50, Devourer.Overflow.DROP_NEWEST);
+        devourer.failMaxKeep(200).retryBackoff(Duration.ZERO, Duration.ZERO);
+        AtomicInteger fails = new AtomicInteger();
+        devourer.suspend(d -> true);
+        devourer.offer(() -> {
+            if (fails.incrementAndGet() < 3) throw new RuntimeException("fail");
+        });
+        for (int i = 0; i < 100; i++) {
+            devourer.offer(() -> {
+                try { Thread.sleep(2); } catch (InterruptedException e) { log.error("", e); }
+            });
+        }
+        devourer.resume();
+        Thread.sleep(500);
+        Map<String, Object> stats = devourer.stats();
+        log.info("stats: {}", stats);
+        Assertions.assertEquals(2L, stats.get("failed"));
+        Assertions.assertEquals(2L, stats.get("retried"));
+        // 对列满(50)后丢弃
+        Assertions.assertEquals(50L, stats.get("completed"));
+        Assertions.assertEquals(51L, stats.get("dropped"));
+        Map<String, Object> runTime = (Map<String, Object>) stats.get("runTime");
+        Assertions.assertTrue((double) runTime.get("p50") >= 2 && (double) runTime.get("p50") < 3);
+    }
+
+
+    /**
+     * 记录一个值的开销
+     */
+    @Test
+    void testHistogramOverhead() throws Exception {
+        Histogram h = new Histogram();
+        int total = 10_000_000;
+        for (int i = 0; i < total; i++) h.record(i & 0xFFFFF); // 预热
+        h = new Histogram();
+        long start = System.nanoTime();
+        for (int i = 0; i < total; i++) h.record(i & 0xFFFFF);
+        long cost = (System.nanoTime() - start) / total;
+        log.info("record cost: {}ns, p50: {}, p99: {}, max: {}", cost, h.percentile(0.5), h.percentile(0.99), h.getMax());
+        Assertions.assertTrue(Math.abs(h.percentile(0.5) - 0x80000) < 0x80000 / 8);
+        Assertions.assertTrue(cost < 50);
+    }
+
+
+    /**
+     * 空闲对列被回收, 下次使用时重新创建
+     */
+    @Test
+    void testIdleEvict() throws Exception {
+        AppContext app = new AppContext() {
+            @Override
+            protected void customEnv(Map<String, Object> already) { already.put("sys.queue.idleTimeout", 1); }
+        };
+        AtomicInteger count = new AtomicInteger();
+        for (int i = 0; i < 100; i++) app.queue("session-" + i, count::incrementAndGet);
+        Devourer configured = app.queue("configured", null).parallel(3); // 获取设置过的对列不回收
+        Devourer busy = app.queue("busy", () -> {
+            try { Thread.sleep(3000); } catch (InterruptedException e) { log.error("", e); }
+        });
+        Thread.sleep(500);
+        Assertions.assertEquals(102, app.queuesStats().size());
+        Thread.sleep(2500);
+        // 空闲超过1秒的被回收, 执行中的不回收
+        Map<String, Object> stats = app.queuesStats();
+        log.info("queues after evict: {}", stats.keySet());
+        Assertions.assertEquals(2, stats.size());
+        Assertions.assertSame(configured, app.queue("configured", null));
+        Assertions.assertEquals(3, configured.getLimit());
+        Assertions.assertSame(busy, app.queue("busy", null));
+        app.queue("session-0", count::incrementAndGet);
+        Thread.sleep(100);
+        Assertions.assertEquals(101, count.get());
+        app.exec().shutdown();
+    }
+
+
+    /**
+     * 并发执行, 按入对顺序交出结果
+     */
+    @Test
+    void testOrdered() throws Exception {
+        ExecutorService exec = Executors.newFixedThreadPool(8);
+        List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger maxInWindow = new AtomicInteger();
+        OrderedDevourer<Integer> devourer = new OrderedDevourer<Integer>("ordered", exec).window(16).consumer(results::add);
+        devourer.parallel(8);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 200; i++) {
+            final int v = i;
+            devourer.offer(() -> {
+                maxInWindow.accumulateAndGet(devourer.getInWindow(), Math::max);
+                Thread.sleep(v % 50 == 0 ? 200 : ThreadLocalRandom.current().nextInt(5, 15)); // 偶尔有个很慢的
+                if (v == 7) throw new RuntimeException("fail 7");
+                return v;
+            });
+        }
+        while (results.size() < 199) Thread.sleep(10);
+        log.info("cost: {}ms, maxInWindow: {}, {}", System.currentTimeMillis() - start, maxInWindow.get(), devourer);
+        for (int i = 0, v = 0; i < results.size(); i++, v++) {
+            if (v == 7) v++; // 失败的没有结果
+            Assertions.assertEquals(v, (int) results.get(i));
+        }
+        Assertions.assertTrue(maxInWindow.get() <= 16 + 8);
+        // 忽略优先级: 高优先级的任务不会占满窗口让最老的任务不能开始
+        List<Integer> prioritized = Collections.synchronizedList(new ArrayList<>());
+        OrderedDevourer<Integer> priority = new OrderedDevourer<Integer>("ordered-priority", exec).window(4).consumer(prioritized::add);
+        priority.parallel(2);
+        priority.suspend(d -> true);
+        priority.offer(() -> prioritized.add(-1), LaneQueue.LOW);
+        for (int i = 0; i < 10; i++) priority.offer(() -> {}, LaneQueue.HIGH);
+        priority.resume();
+        for (int i = 0; i < 100 && priority.getWaitingCount() + priority.getInWindow() > 0; i++) Thread.sleep(10);
+        log.info("{}", priority);
+        Assertions.assertEquals(0, priority.getWaitingCount() + priority.getInWindow());
+        // 对列满被拒绝: 序号被完成, 后面的结果照常交出
+        CountDownLatch latch = new CountDownLatch(1);
+        List<Integer> accepted = Collections.synchronizedList(new ArrayList<>());
+        OrderedDevourer<Integer> rejecting = new OrderedDevourer<Integer>("ordered-reject", exec).consumer(accepted::add);
+        rejecting.capacity(1, Devourer.Overflow.REJECT);
+        rejecting.offer(() -> { latch.await(); return 1; });
+        Thread.sleep(50);
+        rejecting.offer(() -> 2);
+        Assertions.assertThrows(RejectedExecutionException.class, () -> rejecting.offer(() -> 3));
+        latch.countDown();
+        for (int i = 0; i < 100 && accepted.size() < 2; i++) Thread.sleep(10);
+        rejecting.offer(() -> 4);
+        for (int i = 0; i < 100 && accepted.size() < 3; i++) Thread.sleep(10);
+        Assertions.assertEquals(Arrays.asList(1, 2, 4), accepted);
+        // 按key合并: 合并的任务占一个序号, 按入对顺序完成, 不挡住后面的结果
+        List<Integer> merged = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger coalescedRuns = new AtomicInteger();
+        OrderedDevourer<Integer> coalescing = new OrderedDevourer<Integer>("ordered-coalesce", exec).consumer(merged::add);
+        coalescing.parallel(4);
+        coalescing.suspend(d -> true);
+        for (int i = 0; i < 20; i++) {
+            final int v = i;
+            coalescing.offer(() -> v);
+            coalescing.offer("k", coalescedRuns::incrementAndGet);
+        }
+        coalescing.resume();
+        for (int i = 0; i < 100 && (merged.size() < 20 || coalescing.getInWindow() > 0); i++) Thread.sleep(10);
+        Assertions.assertEquals(20, merged.size());
+        for (int i = 0; i < 20; i++) Assertions.assertEquals(i, (int) merged.get(i));
+        Assertions.assertEquals(1, coalescedRuns.get());
+        Assertions.assertEquals(0, coalescing.getInWindow());
+        exec.shutdown();
+    }
+
+
+    /**
+     * 最后一段很慢时, 前面的段被限流, 缓冲区不会超出
+     */
+    @Test
+    void testPipeline() throws Exception {
+        ExecutorService exec = Executors.newFixedThreadPool(8);
+        AtomicInteger persisted = new AtomicInteger();
+        AtomicInteger maxBatch = new AtomicInteger();
+        Pipeline<String, Void> pipeline = new Pipeline<String, String>("ingest", exec).buffer(50)
+                .stage("parse", 4, Integer::parseInt)
+                .stage("enrich", 4, i -> i * 2)
+                .batchStage("persist", 1, 20, ls -> {
+                    try { Thread.sleep(20); } catch (InterruptedException e) { log.error("", e); }
+                    maxBatch.accumulateAndGet(ls.size(), Math::max);
+                    persisted.addAndGet(ls.size());
+                    return null;
+                });
+        int offered = 0, rejected = 0;
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 1000) {
+            try {
+                pipeline.offer(String.valueOf(offered));
+                offered++;
+            } catch (RejectedExecutionException ex) {
+                rejected++;
+                Thread.sleep(1);
+            }
+            Map<String, Object> stats = pipeline.stats();
+            for (Object stage : stats.values()) {
+                Assertions.assertTrue((int) ((Map) stage).get("itemCount") <= 50 + 4);
+            }
+        }
+        while (persisted.get() < offered) Thread.sleep(10);
+        log.info("offered: {}, rejected: {}, maxBatch: {}, {}", offered, rejected, maxBatch.get(), pipeline);
+        log.info("stats: {}", pipeline.stats());
+        Assertions.assertTrue(rejected > 0);
+        Assertions.assertEquals(20, maxBatch.get());
+        exec.shutdown();
+    }
+
+
+    /**
+     * 同一个key只执行最新的, 不影响其它key
+     */
+    @Test
+    void testCoalesce() throws Exception {
+        Devourer devourer = new Devourer("coalesce");
+        Map<String, Integer> prices = new ConcurrentHashMap<>();
+        AtomicInteger executed = new AtomicInteger();
+        devourer.suspend(d -> true);
+        for (int i = 0; i < 1000; i++) {
+            final String sku = "sku-" + (i % 10);
+            final int price = i;
+            devourer.offer(sku, () -> {
+                executed.incrementAndGet();
+                prices.put(sku, price);
+            });
+        }
+        Assertions.assertEquals(10, devourer.getWaitingCount());
+        devourer.resume();
+        Thread.sleep(200);
+        log.info("executed: {}, prices: {}, stats: {}", executed.get(), prices, devourer.stats());
+        Assertions.assertEquals(10, executed.get());
+        for (int i = 0; i < 10; i++) Assertions.assertEquals(990 + i, (int) prices.get("sku-" + i));
+        // 开始执行后, 同一个key的新任务重新排对
+        devourer.offer("sku-0", () -> prices.put("sku-0", -1));
+        Thread.sleep(100);
+        Assertions.assertEquals(-1, (int) prices.get("sku-0"));
+        // 对列满被拒绝的key, 之后还能入对执行
+        Devourer full = new Devourer("coalesce-full").capacity(1, Devourer.Overflow.REJECT);
+        full.suspend(d -> true);
+        full.offer("sku-0", () -> prices.put("sku-0", 0));
+        Assertions.assertThrows(RejectedExecutionException.class, () -> full.offer("sku-1", () -> prices.put("sku-1", 0)));
+        full.resume();
+        Thread.sleep(100);
+        full.offer("sku-1", () -> prices.put("sku-1", -1));
+        Thread.sleep(100);
+        Assertions.assertEquals(-1, (int) prices.get("sku-1"));
+    }
+
+
+    /**
+     * 高优先级的任务先执行, 低优先级的任务老化后也能执行
+     */
+    @Test
+    void testPriority() throws Exception {
+        Devourer devourer = new Devourer("priority");
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        devourer.suspend(d -> true);
+        for (int i = 0; i < 5; i++) {
+            final int n = i;
+            devourer.offer(() -> order.add("low" + n), LaneQueue.LOW);
+            devourer.offer(() -> order.add("normal" + n));
+            devourer.offer(() -> order.add("high" + n), LaneQueue.HIGH);
+        }
+        devourer.resume();
+        Thread.sleep(200);
+        log.info("order: {}", order);
+        Assertions.assertEquals(15, order.size());
+        Assertions.assertEquals("high0", order.get(0));
+        Assertions.assertEquals("high4", order.get(4));
+        Assertions.assertEquals("normal0", order.get(5));
+        Assertions.assertEquals("low4", order.get(14));
+
+        // 老化: 高优先级任务源源不断时, 低优先级的任务也能执行
+        Devourer aging = new Devourer("aging").aging(Duration.ofMillis(20));
+        AtomicBoolean lowRun = new AtomicBoolean();
+        aging.offer(() -> lowRun.set(true), LaneQueue.LOW);
+        long start = System.currentTimeMillis();
+        while (!lowRun.get() && System.currentTimeMillis() - start < 3000) {
+            aging.offer(() -> {
+                try { Thread.sleep(1); } catch (InterruptedException e) {}
+            }, LaneQueue.HIGH);
+            Thread.sleep(1);
+        }
+        log.info("low run: {}, after: {}ms", lowRun.get(), System.currentTimeMillis() - start);
+        Assertions.assertTrue(lowRun.get());
+    }
+
+
+    /**
+     * 线程池被低优先级任务占满时, 高优先级任务的排对时长
+     */
+    @Test
+    void testPriorityExec() throws Exception {
+        ThreadPoolExecutor exec = new ThreadPoolExecutor(4, 4, 1, TimeUnit.MINUTES, new LaneQueue<Runnable>().aging(Duration.ofSeconds(5)));
+        AtomicBoolean stop = new AtomicBoolean();
+        // 不断的提交低优先级任务, 让线程池一直有大量任务等待
+        Thread flood = new Thread(() -> {
+            while (!stop.get()) {
+                if (exec.getQueue().size() > 2000) { Thread.yield(); continue; }
+                exec.execute(LaneQueue.prioritized(() -> {
+                    long t = System.nanoTime();
+                    while (System.nanoTime() - t < 100_000) ;
+                }, LaneQueue.LOW));
+            }
+        });
+        flood.start();
+        Thread.sleep(200);
+        Histogram high = new Histogram(), normal = new Histogram();
+        CountDownLatch latch = new CountDownLatch(400);
+        for (int i = 0; i < 200; i++) {
+            final long t = System.nanoTime();
+            exec.execute(LaneQueue.prioritized(() -> { high.record(System.nanoTime() - t); latch.countDown(); }, LaneQueue.HIGH));
+            exec.execute(() -> { normal.record(System.nanoTime() - t); latch.countDown(); });
+            Thread.sleep(2);
+        }
+        latch.await(30, TimeUnit.SECONDS);
+        stop.set(true);
+        flood.join();
+        exec.shutdownNow();
+        log.info("high wait(ms): {}, normal wait(ms): {}", high.snapshot(1e-6), normal.snapshot(1e-6));
+        Assertions.assertTrue(high.percentile(0.99) < TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+
+    /**
+     * 有结果的任务: 成功, 失败, 被丢弃
+     */
+    @Test
+    void testSubmit() throws Exception {
+        Devourer devourer = new Devourer("submit");
+        devourer.suspend(d -> true);
+        CompletableFuture<String> ok = devourer.submit(() -> Thread.currentThread().getName());
+        CompletableFuture<String> then = ok.thenApply(v -> Thread.currentThread().getName());
+        devourer.resume();
+        // 依赖阶段在执行任务的线程中执行
+        Assertions.assertEquals(ok.get(1, TimeUnit.SECONDS), then.get(1, TimeUnit.SECONDS));
+        CompletableFuture<Object> fail = devourer.submit(() -> { throw new java.io.IOException("io error"); });
+        ExecutionException ex = Assertions.assertThrows(ExecutionException.class, () -> fail.get(1, TimeUnit.SECONDS));
+        Assertions.assertTrue(ex.getCause() instanceof java.io.IOException);
+
+        // 失败重试后成功
+        AtomicInteger times = new AtomicInteger();
+        devourer.failMaxKeep(10).retryBackoff(Duration.ofMillis(5), Duration.ofMillis(20));
+        CompletableFuture<Integer> retry = devourer.submit(() -> {
+            if (times.incrementAndGet() < 3) throw new RuntimeException("retry " + times.get());
+            return times.get();
+        });
+        Assertions.assertEquals(3, (int) retry.get(1, TimeUnit.SECONDS));
+
+        // 被丢弃的任务: future 被取消
+        devourer.capacity(1, Devourer.Overflow.DROP_NEWEST).suspend(d -> true);
+        CompletableFuture<Integer> first = devourer.submit(() -> 1);
+        CompletableFuture<Integer> second = devourer.submit(() -> 2);
+        Assertions.assertTrue(second.isCancelled());
+        devourer.resume();
+        Assertions.assertEquals(1, (int) first.get(1, TimeUnit.SECONDS));
+    }
+
+
+    /**
+     * 并行多个IO, 有时间预算
+     */
+    @Test
+    void testAllOf() throws Exception {
+        AppContext app = new AppContext();
+        ServerTpl srv = new ServerTpl("fan");
+        app.addSource(srv);
+        long start = System.currentTimeMillis();
+        List<CompletableFuture<Integer>> calls = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            final int n = i;
+            calls.add(srv.asyncCall(() -> { Thread.sleep(100); return n; }));
+        }
+        List<Integer> results = srv.allOf(Duration.ofMillis(500), calls).get();
+        log.info("allOf: {}, spend: {}ms", results, System.currentTimeMillis() - start);
+        Assertions.assertEquals(java.util.Arrays.asList(0, 1, 2, 3, 4), results);
+        Assertions.assertTrue(System.currentTimeMillis() - start < 400);
+
+        // 超过时间预算
+        CompletableFuture<Integer> slow = srv.asyncCall(() -> { Thread.sleep(1000); return 1; });
+        CompletableFuture<List<Integer>> budget = srv.allOf(Duration.ofMillis(100), srv.asyncCall(() -> 0), slow);
+        ExecutionException ex = Assertions.assertThrows(ExecutionException.class, budget::get);
+        Assertions.assertTrue(ex.getCause() instanceof TimeoutException);
+        app.exec().shutdown();
+    }
+
+
+    /**
+     * 开始前已过截止时间的任务不执行, 执行中的任务看到取消标记
+     */
+    @Test
+    void testDeadline() throws Exception {
+        Devourer devourer = new Devourer("deadline");
+        AtomicInteger executed = new AtomicInteger();
+        devourer.offer(() -> {
+            try { Thread.sleep(200); } catch (InterruptedException e) {}
+        });
+        Deadline deadline = Deadline.after(Duration.ofMillis(50));
+        for (int i = 0; i < 10; i++) devourer.offer(executed::incrementAndGet, deadline);
+        CompletableFuture<Integer> call = devourer.submit(() -> 1, deadline);
+        devourer.offer(executed::incrementAndGet); // 没有截止时间
+        Thread.sleep(400);
+        Map<String, Object> stats = devourer.stats();
+        log.info("deadline stats: {}", stats);
+        Assertions.assertEquals(1, executed.get());
+        Assertions.assertEquals(11L, stats.get("expired"));
+        Assertions.assertTrue(call.isCancelled());
+
+        // 执行中的任务: 取消后在检查点结束
+        Deadline cancellable = Deadline.cancellable();
+        AtomicInteger steps = new AtomicInteger();
+        CompletableFuture<Integer> running = devourer.submit(() -> {
+            for (int i = 0; i < 1000; i++) {
+                Deadline.checkpoint();
+                steps.incrementAndGet();
+                Thread.sleep(1);
+            }
+            return steps.get();
+        }, cancellable);
+        Thread.sleep(50);
+        cancellable.cancel();
+        Assertions.assertThrows(CancellationException.class, () -> running.get(1, TimeUnit.SECONDS));
+        log.info("cancelled after steps: {}", steps.get());
+        Assertions.assertEquals(12L, devourer.stats().get("expired"));
+        Assertions.assertTrue(steps.get() < 1000);
+        Assertions.assertNull(Deadline.current());
+
+        // 系统线程池
+        AppContext app = new AppContext();
+        Deadline expired = Deadline.after(Duration.ZERO);
+        for (int i = 0; i < 5; i++) app.exec().execute(expired.bind(executed::incrementAndGet, LaneQueue.NORMAL, null));
+        Thread.sleep(100);
+        Assertions.assertEquals(5L, app.execStats().get("expired"));
+        Assertions.assertEquals(1, executed.get());
+        app.exec().shutdown();
+    }
 }